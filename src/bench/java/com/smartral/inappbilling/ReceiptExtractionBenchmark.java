@@ -0,0 +1,77 @@
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.io.JSONParser;
+import com.smartral.inappbilling.utils.payment.Receipt;
+import com.smartral.inappbilling.utils.processing.Result;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * Times {@code AppleIAPValidator.Response.getReceipts} on synthetic verifyReceipt responses of a
+ * long-lived subscriber, with as many in_app as latest_receipt_info entries. Run it with
+ * {@code gradle bench}, the arguments are the entry counts of each array.
+ */
+public class ReceiptExtractionBenchmark {
+
+    private static final int WARMUP = 20;
+    private static final int ITERATIONS = 50;
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = {500, 5000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) throws IOException {
+        AppleIAPValidator.Response response = new AppleIAPValidator.Response();
+        AppleIAPValidator.applyResponseData(response, Result.fromContent(response(size)));
+        Receipt[] receipts = null;
+        for (int i = 0; i < WARMUP; i++) {
+            receipts = response.getReceipts(false);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            receipts = response.getReceipts(false);
+        }
+        double avg = (System.nanoTime() - start) / (double) ITERATIONS / 1e6;
+        System.out.println(String.format("in_app + latest_receipt_info of %d + %d: %.1f ms (%d receipts)", size, size, avg, receipts.length));
+    }
+
+    /**
+     * Builds a parsed response whose in_app entries all renew one subscription and whose
+     * latest_receipt_info entries alternate between two
+     */
+    private static Map<String, Object> response(int size) throws IOException {
+        long base = 1500000000000L;
+        StringBuilder sb = new StringBuilder("{\"status\":0,\"latest_receipt\":\"abc\",")
+                .append("\"pending_renewal_info\":[{\"original_transaction_id\":\"100\",\"auto_renew_status\":\"1\"}],")
+                .append("\"receipt\":{\"bundle_id\":\"com.example\",\"in_app\":[");
+        for (int i = 0; i < size; i++) {
+            entry(sb, i, "100", base);
+        }
+        sb.setLength(sb.length() - 1);
+        sb.append("],\"latest_receipt_info\":[");
+        for (int i = 0; i < size; i++) {
+            entry(sb, i, i % 2 == 0 ? "100" : "200", base);
+        }
+        sb.setLength(sb.length() - 1);
+        sb.append("]}}");
+        return new JSONParser().parseJSON(new StringReader(sb.toString()));
+    }
+
+    private static void entry(StringBuilder sb, int i, String originalTransactionId, long base) {
+        long purchased = base + i * 1000L;
+        sb.append("{\"quantity\":\"1\",\"product_id\":\"monthly\",\"transaction_id\":\"").append(1000 + i)
+                .append("\",\"original_transaction_id\":\"").append(originalTransactionId)
+                .append("\",\"purchase_date_ms\":\"").append(purchased)
+                .append("\",\"expires_date_ms\":\"").append(purchased + 500).append("\"},");
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.smartral.inappbilling;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers whether receipts were accepted by the production or the sandbox verifyReceipt host
+ * so later validations of the same receipt or bundle go straight to the right host instead of
+ * paying for the 21007 round trip. The memory is a hint only, a receipt sent to the wrong host
+ * still falls back to the other one. A bundle only remembers production since TestFlight and
+ * review builds share the bundle id of the released app, a sandbox receipt must never route the
+ * production receipts of its bundle to the sandbox host.
+ */
+class AppleEnvironmentRouter {
+
+    private static final int DEFAULT_MAX_RECEIPTS = 100000;
+
+    private final Set<String> productionBundles = ConcurrentHashMap.newKeySet();
+    private final Map<String, Boolean> receipts;
+
+    AppleEnvironmentRouter() {
+        this(DEFAULT_MAX_RECEIPTS);
+    }
+
+    AppleEnvironmentRouter(final int maxReceipts) {
+        receipts = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxReceipts;
+            }
+        };
+    }
+
+    /**
+     * Returns a digest of the receipt data used to identify a receipt
+     *
+     * @param receipt the base64 receipt data
+     * @return the fingerprint
+     */
+    static String fingerprint(String receipt) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] digest = md.digest(receipt.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Returns the environment learned for the receipt or, failing that, production if the bundle
+     * was seen in production
+     *
+     * @param fingerprint the receipt fingerprint
+     * @param bundleId the bundle id or null if unknown
+     * @return true for sandbox, false for production or null if unknown
+     */
+    Boolean isSandbox(String fingerprint, String bundleId) {
+        Boolean sandbox;
+        synchronized (receipts) {
+            sandbox = receipts.get(fingerprint);
+        }
+        if (sandbox == null && bundleId != null && productionBundles.contains(bundleId)) {
+            sandbox = Boolean.FALSE;
+        }
+        return sandbox;
+    }
+
+    /**
+     * Records the host that accepted a receipt
+     *
+     * @param fingerprint the receipt fingerprint
+     * @param bundleId the bundle id from the response or null
+     * @param sandbox true if the sandbox host accepted the receipt
+     */
+    void learn(String fingerprint, String bundleId, boolean sandbox) {
+        synchronized (receipts) {
+            receipts.put(fingerprint, sandbox);
+        }
+        if (bundleId != null && !sandbox) {
+            productionBundles.add(bundleId);
+        }
+    }
+}
@@ -6,16 +6,27 @@
 package com.smartral.inappbilling;
 
 import com.smartral.inappbilling.utils.io.ConnectionRequest;
-import com.smartral.inappbilling.utils.io.JSONParser;
+import com.smartral.inappbilling.utils.io.NetworkEvent;
+import com.smartral.inappbilling.utils.io.RequestMetrics;
+import com.smartral.inappbilling.utils.io.RetryPolicy;
 import com.smartral.inappbilling.utils.payment.Receipt;
 import com.smartral.inappbilling.utils.processing.Result;
 import com.smartral.inappbilling.utils.util.Callback;
+import com.smartral.inappbilling.utils.util.CallbackCoalescer;
+import com.smartral.inappbilling.utils.util.ExpiringCache;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,10 +44,19 @@ public class AppleIAPValidator extends IAPValidator {
 
     private static final String excludeOldTransactions = "exclude-old-transactions";
 
+    /**
+     * The hedge delay until enough latencies were sampled
+     */
+    private static final long DEFAULT_HEDGE_DELAY = 1000;
+
+    private static final long MIN_HEDGE_DELAY = 10;
+
+    private static ScheduledExecutorService scheduler;
+
     /**
      * Error codes for IAP validation REST service
      */
-    private static Object[] errorMap = new Object[]{
+    private static final Object[] errorMap = new Object[]{
             21000, "The App Store could not read the JSON object you provided.",
             21002, "The data in the receipt-data property was malformed.",
             21003, "The receipt could not be authenticated.",
@@ -46,35 +66,34 @@ public class AppleIAPValidator extends IAPValidator {
             21007, "This receipt is a sandbox receipt, but it was sent to the production service for verification.",
             21008, "This receipt is a production receipt, but it was sent to the sandbox service for verification.",
             2, "The receipt is valid, but purchased nothing."};
-    Response validatedData;
 
     public AppleIAPValidator(boolean isSandBox, boolean isExcludeOldTransactions) {
         this.isSandBox = isSandBox;
         this.isExcludeOldTransactions = isExcludeOldTransactions;
     }
 
-    private static Long getSubscriptionExpireDate(Result data) {
-        if (data.get("expires_date_ms") != null) {
-            return data.getAsLong("expires_date_ms");
-        }
-
-        if (data.get("expires_date") != null) {
-            return data.getAsLong("expires_date");
-        }
-        return null;
-
+    static void applyResponseData(Response data, Result res) {
+        data.purchaseData = res;
     }
 
-    private static void applyResponseData(Response data, Result res) {
-        data.purchaseData = res;
+    @Override
+    public Receipt[] validate(Receipt receipt, boolean isSubs) throws IOException {
+        return validate(receipt, isSubs, getDefaultDeadline());
     }
 
     @Override
-    public Receipt[] validate(final Receipt receipt, boolean isSubs) throws IOException {
+    public Receipt[] validate(final Receipt receipt, boolean isSubs, long deadline) throws IOException {
+        if (AppleJWSVerifier.isJWS(receipt.getOrderData())) {
+            return new Receipt[]{verifySignedTransaction(receipt)};
+        }
+        Receipt[] local = decodeLocally(receipt);
+        if (local != null) {
+            return local;
+        }
         final ReceiptHolder h = new ReceiptHolder();
         final ExceptionHolder eh = new ExceptionHolder();
 
-        validatePurchase(getAppleSecret(), receipt.getOrderData(), new Callback<Response>() {
+        validatePurchase(getAppleSecret(), receipt.getOrderData(), receipt.getPackageName(), new Callback<Response>() {
 
             @Override
             public void onSuccess(Response t) {
@@ -93,7 +112,7 @@ public class AppleIAPValidator extends IAPValidator {
             public void onError(Object o, Throwable thrwbl, int i, String string) {
                 eh.ex = thrwbl;
             }
-        });
+        }, true, deadline);
 
         if (h.receipts != null) {
             return h.receipts;
@@ -109,6 +128,87 @@ public class AppleIAPValidator extends IAPValidator {
 
     }
 
+    @Override
+    public CompletableFuture<Receipt[]> validateAsync(Receipt receipt, boolean isSubs) {
+        return validateAsync(receipt, isSubs, getDefaultDeadline());
+    }
+
+    @Override
+    public CompletableFuture<Receipt[]> validateAsync(final Receipt receipt, boolean isSubs, long deadline) {
+        if (AppleJWSVerifier.isJWS(receipt.getOrderData())) {
+            CompletableFuture<Receipt[]> out = new CompletableFuture<>();
+            try {
+                out.complete(new Receipt[]{verifySignedTransaction(receipt)});
+            } catch (IOException ex) {
+                out.completeExceptionally(ex);
+            }
+            return out;
+        }
+        Receipt[] local = decodeLocally(receipt);
+        if (local != null) {
+            return CompletableFuture.completedFuture(local);
+        }
+        final CompletableFuture<Receipt[]> out = new CompletableFuture<>();
+        validatePurchase(getAppleSecret(), receipt.getOrderData(), receipt.getPackageName(), new Callback<Response>() {
+
+            @Override
+            public void onSuccess(Response t) {
+                try {
+                    out.complete(t.getReceipts(false));
+                } catch (RuntimeException ex) {
+                    out.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void onError(Object o, Throwable thrwbl, int i, String string) {
+                out.completeExceptionally(thrwbl);
+            }
+        }, false, deadline);
+        return out;
+    }
+
+    /**
+     * Verifies a JWS signed transaction sent by the device, these never go to verifyReceipt
+     */
+    private Receipt verifySignedTransaction(Receipt receipt) throws IOException {
+        AppleJWSVerifier verifier = jwsVerifier;
+        if (verifier == null) {
+            throw new IOException("Received a signed transaction but no JWS verifier is set");
+        }
+        return verifier.verifyTransaction(receipt.getOrderData(), null, receipt.getPackageName());
+    }
+
+    /**
+     * Decodes the receipt locally when a local decoder is set and the receipt holds no
+     * subscriptions, subscriptions still go to verifyReceipt for their renewal state
+     *
+     * @return the receipts or null if the receipt has to be sent to verifyReceipt
+     */
+    private Receipt[] decodeLocally(Receipt receipt) {
+        AppleLocalReceiptDecoder decoder = localDecoder;
+        if (decoder == null || receipt.getOrderData() == null) {
+            return null;
+        }
+        Map<String, Object> decoded;
+        try {
+            decoded = decoder.decode(receipt.getOrderData(), receipt.getPackageName());
+        } catch (IOException ex) {
+            Logger.getLogger(getClass().getSimpleName()).log(Level.FINE, "Failed to decode the receipt locally", ex);
+            return null;
+        }
+        Object inApp = ((Map) decoded.get("receipt")).get("in_app");
+        for (Object item : (List) inApp) {
+            if (getSubscriptionExpireDate((Map) item) != null) {
+                return null;
+            }
+        }
+        Response local = new Response();
+        applyResponseData(local, Result.fromContent(decoded));
+        local.isValidated = true;
+        return local.getReceipts(false);
+    }
+
     // The receipts keys in iOS receipts
 //        var REC_KEYS = {
 //                IN_APP: 'in_app',
@@ -133,8 +233,20 @@ public class AppleIAPValidator extends IAPValidator {
         return null;
     }
 
-    void validatePurchaseImpl(final String url, String secret, final String receipt, final Callback<Response> response) {
-        final boolean isSandboxUrl = isSandBox; //url.equals(sandboxPath);
+    /**
+     * Sends the receipt to the given verifyReceipt url.
+     *
+     * @param fingerprint the receipt fingerprint used to remember the environment or null
+     * @param fallback true to resend the receipt to the other host when this one reports that
+     *                 the receipt belongs to the other environment
+     * @param deadline the time in milliseconds since the epoch the request and its fallback must
+     *                 be done by or 0
+     * @return the request that was queued
+     */
+    ConnectionRequest validatePurchaseImpl(final String url, String secret, final String receipt, final String fingerprint,
+                                           final Callback<Response> response, final boolean fallback, final boolean wait,
+                                           final long deadline) {
+        final boolean isSandboxUrl = url.equals(sandboxPath);
         Map<String, Object> content = new HashMap<>();
         content.put("receipt-data", receipt);
         if (secret == null) {
@@ -155,9 +267,31 @@ public class AppleIAPValidator extends IAPValidator {
                 os.write(Result.fromContent(fContent).toString().getBytes("UTF-8"));
             }
 
+            @Override
+            protected void readResponse(InputStream input) throws IOException {
+                if (isKilled()) {
+                    return;
+                }
+                if (getResponseCode() < 200 || getResponseCode() >= 300) {
+                    super.readResponse(input);
+                    return;
+                }
+                // Parse straight from the socket rather than buffering the whole response
+                Object parsed;
+                try {
+                    parsed = AppleResponseParser.parse(input);
+                } catch (IOException ex) {
+                    parsed = ex;
+                }
+                if (!isKilled()) {
+                    fireResponseListener(new NetworkEvent(this, parsed));
+                }
+            }
+
         };
 
         final String fSecret = secret;
+        final String otherUrl = isSandboxUrl ? prodPath : sandboxPath;
         request.addRequestHeader("Content-type", "application/json");
         request.addRequestHeader("Accept", "application/json");
         request.setUrl(url);
@@ -165,164 +299,790 @@ public class AppleIAPValidator extends IAPValidator {
         request.setPost(true);
         request.setFailSilently(true);
         request.setReadResponseForErrors(true);
+        request.setPriority(getRequestPriority());
+        // verifyReceipt only reads so a retry can't do harm
+        request.setIdempotent(true);
+        request.setRetryPolicy(getRetryPolicy());
+        request.setEndpointGuard(getEndpointGuard(url));
+        request.setDeadline(deadline);
+        final boolean[] handled = new boolean[1];
         request.addResponseListener(evt -> {
+            handled[0] = true;
+            if (request.getResponseCode() >= 200 && request.getResponseCode() < 300) {
+                Object parsed = evt.getMetaData();
+                if (!(parsed instanceof AppleResponseParser)) {
+                    Throwable ex = parsed instanceof Throwable ? (Throwable) parsed : new IOException("Failed to parse the response");
+                    if (fallback && !isSandboxUrl) {
+                        track(response, validatePurchaseImpl(sandboxPath, fSecret, receipt, fingerprint, response, false, wait, deadline));
+                    } else {
+                        response.onError(AppleIAPValidator.this, ex, 1, ex.getMessage());
+                    }
+                    return;
+                }
+                AppleResponseParser parser = (AppleResponseParser) parsed;
+                Result res = Result.fromContent(parser.getResult());
+                int dStatus = res.getAsInteger("status");
+                Logger.getLogger(getClass().getSimpleName()).log(Level.FINE, "Response from " + url + ": status " + dStatus + ", " + parser.getBytesRead() + " bytes");
+                boolean otherEnvironment = isSandboxUrl ? dStatus == 21008 : dStatus == 21007 || dStatus == 21002;
+                if (fallback && otherEnvironment) {
+                    // The receipt belongs to the other environment
+                    track(response, validatePurchaseImpl(otherUrl, fSecret, receipt, fingerprint, response, false, wait, deadline));
+                    return;
+                }
+                if ((dStatus == 21005 || (dStatus >= 21100 && dStatus <= 21199)) && request.retryWithBackoff()) {
+                    // The receipt server is temporarily unavailable
+                    handled[0] = false;
+                    return;
+                }
+                if (fingerprint != null && (dStatus == 0 || dStatus == 21006)) {
+                    // The host recognized the receipt so remember its environment
+                    router.learn(fingerprint, getBundleId(res), isSandboxUrl);
+                }
+                if (dStatus > 0) {
+                    // We got an error that isn't about the environment or we can't fall back
+                    String eMessage = getErrorMessageForCode(dStatus);
+                    if (eMessage == null) {
+                        eMessage = "Unknown";
+                    }
+
+                    Response failed = new Response();
+                    failed.status = dStatus;
+                    failed.message = eMessage;
+
+                    applyResponseData(failed, res);
+                    failed.isValidated = false;
+                    response.onError(AppleIAPValidator.this, new IOException(eMessage), dStatus, eMessage);
+                    return;
+                }
+                //String latestReceipt = res.getAsString("latest_receipt");
+
+                Response validated = new Response();
+                applyResponseData(validated, res);
+                validated.weight = (int) parser.getBytesRead();
+
+                validated.isValidated = true;
+                response.onSuccess(validated);
+            } else {
+                response.onError(AppleIAPValidator.this, new IOException("Failed to connect"), evt.getResponseCode(), "Unexpected response code " + evt.getResponseCode());
+            }
+        });
+        request.addCompletionListener(evt -> {
+            Logger.getLogger(getClass().getSimpleName()).log(Level.FINE, "Timings of " + evt.getMetrics());
+            RequestMetrics metrics = evt.getMetrics();
+            if (metrics != null && metrics.getFailure() == null && metrics.getResponseCode() >= 200 && metrics.getResponseCode() < 300) {
+                latencies.add(metrics.getTotal());
+            }
+            if (!handled[0]) {
+                // The request failed before a response could be read
+                Exception ex = request.getFailureException();
+                if (ex == null) {
+                    ex = new IOException("Failed to connect");
+                }
+                response.onError(AppleIAPValidator.this, ex, request.getFailureErrorCode(), ex.getMessage());
+            }
+        });
+        if (wait) {
+            request.addToQueueAndWait();
+        } else {
+            request.addToQueue();
+        }
+        return request;
+    }
+
+    /**
+     * Hands a fallback request to the callback it reports to if that callback kills its requests
+     */
+    private static void track(Callback<Response> response, ConnectionRequest request) {
+        if (response instanceof RequestTracker) {
+            ((RequestTracker) response).track(request);
+        }
+    }
+
+    /**
+     * Implemented by callbacks that kill their requests, they learn about the fallback request
+     * sent to the other environment on their behalf
+     */
+    private interface RequestTracker {
+        void track(ConnectionRequest request);
+    }
+
+    private static String getBundleId(Result res) {
+        Object receipt = res.get("receipt");
+        if (receipt instanceof Map) {
+            Object bundleId = ((Map) receipt).get("bundle_id");
+            return bundleId != null ? bundleId.toString() : null;
+        }
+        return null;
+    }
+
+    /**
+     * Validates the receipt on the host its environment was last seen on, production when unknown
+     *
+     * @param bundleId the bundle id if known by the caller or null
+     * @param deadline the time in milliseconds since the epoch the validation must be done by or 0
+     */
+    void validatePurchase(String secret, final String receipt, final String bundleId, Callback<Response> response, final boolean wait,
+                          final long deadline) {
+        final String fingerprint = AppleEnvironmentRouter.fingerprint(receipt);
+        if (secret == null) {
+            secret = System.getProperty("iap.applePassword", null);
+        }
+        final String fSecret = secret;
+        final String key = fingerprint + ':' + (secret == null ? "" : AppleEnvironmentRouter.fingerprint(secret)) + ':' + isExcludeOldTransactions;
+        if (responseCacheMaxTtl > 0) {
+            Response cached = responseCache.get(key);
+            if (cached != null) {
+                response.onSuccess(cached);
+                return;
+            }
+        }
+        // identical validations in flight share a single request
+        inFlight.execute(key, response, wait, deadline, cb -> {
+            if (responseCacheMaxTtl > 0) {
+                cb = new CachingCallback(key, cb);
+            }
+            if (isSandBox) {
+                send(sandboxPath, fSecret, receipt, null, cb, false, wait, deadline);
+                return;
+            }
+            Boolean sandbox = router.isSandbox(fingerprint, bundleId);
+            if (sandbox == null && raceUnknownEnvironments) {
+                new EnvironmentRace(cb).start(fSecret, receipt, fingerprint, wait, deadline);
+                return;
+            }
+            send(Boolean.TRUE.equals(sandbox) ? sandboxPath : prodPath, fSecret, receipt, fingerprint, cb, true, wait, deadline);
+        });
+    }
+
+    /**
+     * Sends the receipt to the given url, hedged if hedging is on
+     */
+    private void send(String url, String secret, String receipt, String fingerprint, Callback<Response> response,
+                      boolean fallback, boolean wait, long deadline) {
+        if (hedgeRequests) {
+            new Hedge(response).start(url, secret, receipt, fingerprint, fallback, wait, deadline);
+        } else {
+            validatePurchaseImpl(url, secret, receipt, fingerprint, response, fallback, wait, deadline);
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "AppleHedge");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * The time a request waits for an answer before it's hedged, the hedge percentile of the
+     * recent latencies
+     */
+    private long getHedgeDelay() {
+        long p = latencies.percentile(hedgePercentile);
+        return p < 0 ? DEFAULT_HEDGE_DELAY : Math.max(MIN_HEDGE_DELAY, p);
+    }
+
+    /**
+     * Caches successful responses until the earliest future subscription expiry in the response
+     * capped by {@link #getResponseCacheMaxTtl()}
+     */
+    private class CachingCallback implements Callback<Response> {
+        private final String cacheKey;
+        private final Callback<Response> response;
+
+        CachingCallback(String cacheKey, Callback<Response> response) {
+            this.cacheKey = cacheKey;
+            this.response = response;
+        }
+
+        @Override
+        public void onSuccess(Response value) {
+            long now = System.currentTimeMillis();
+            long ttl = Math.min(responseCacheMaxTtl, value.getEarliestExpiry(now) - now);
+            if (ttl > 0) {
+                responseCache.put(cacheKey, value, ttl, value.weight);
+            }
+            response.onSuccess(value);
+        }
+
+        @Override
+        public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+            response.onError(sender, err, errorCode, errorMessage);
+        }
+    }
+
+    /**
+     * The maximum time in milliseconds a verifyReceipt response is reused for the same receipt,
+     * 0 (the default) disables the cache. Subscription responses are only reused until the
+     * earliest subscription expiry in the response.
+     *
+     * @return the responseCacheMaxTtl
+     */
+    public long getResponseCacheMaxTtl() {
+        return responseCacheMaxTtl;
+    }
+
+    /**
+     * The maximum time in milliseconds a verifyReceipt response is reused for the same receipt,
+     * 0 (the default) disables the cache. Subscription responses are only reused until the
+     * earliest subscription expiry in the response.
+     *
+     * @param responseCacheMaxTtl the responseCacheMaxTtl to set
+     */
+    public void setResponseCacheMaxTtl(long responseCacheMaxTtl) {
+        checkConfigurable();
+        this.responseCacheMaxTtl = responseCacheMaxTtl;
+        if (responseCacheMaxTtl <= 0) {
+            responseCache.clear();
+        }
+    }
+
+    /**
+     * Limits the response cache to the given number of responses and total response size in bytes
+     *
+     * @param maxEntries the maximum number of cached responses
+     * @param maxBytes the maximum total size of the cached responses
+     */
+    public void setResponseCacheLimits(int maxEntries, long maxBytes) {
+        checkConfigurable();
+        responseCache.setMaxEntries(maxEntries);
+        responseCache.setMaxWeight(maxBytes);
+    }
+
+    /**
+     * Decodes receipts without subscriptions locally instead of sending them to verifyReceipt.
+     * Receipts that fail to decode or verify are still sent to verifyReceipt.
+     *
+     * @param localDecoder the decoder or null to send every receipt to verifyReceipt
+     */
+    public void setLocalReceiptDecoder(AppleLocalReceiptDecoder localDecoder) {
+        checkConfigurable();
+        this.localDecoder = localDecoder;
+    }
+
+    /**
+     * Sets the verifier for receipts whose order data is a JWS signed transaction
+     *
+     * @param jwsVerifier the verifier or null to reject signed transactions
+     */
+    public void setJWSVerifier(AppleJWSVerifier jwsVerifier) {
+        checkConfigurable();
+        this.jwsVerifier = jwsVerifier;
+    }
+
+    /**
+     * Sends a receipt of unknown environment to both hosts at once and answers with the host
+     * that recognized it. The slower request is killed.
+     */
+    private class EnvironmentRace {
+        private final Callback<Response> response;
+        private final CompletableFuture<Response> winner = new CompletableFuture<>();
+        private final AtomicInteger outstanding = new AtomicInteger(2);
+        private final ConnectionRequest[] legs = new ConnectionRequest[2];
+        private Throwable error;
+        private int errorCode;
+        private String errorMessage;
+
+        EnvironmentRace(Callback<Response> response) {
+            this.response = response;
+        }
+
+        void start(String secret, String receipt, String fingerprint, boolean wait, long deadline) {
+            legs[0] = validatePurchaseImpl(prodPath, secret, receipt, fingerprint, new Leg(21007), false, false, deadline);
+            legs[1] = validatePurchaseImpl(sandboxPath, secret, receipt, fingerprint, new Leg(21008), false, false, deadline);
+            if (!wait) {
+                winner.whenComplete((r, err) -> deliver());
+                return;
+            }
             try {
-                Logger.getLogger(getClass().getSimpleName()).log(Level.INFO, "Response: " + new String(request.getResponseData(), "UTF-8"));
-            } catch (Exception ex) {
+                winner.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                kill();
+                response.onError(AppleIAPValidator.this, ex, 1, "Interrupted");
+                return;
+            } catch (ExecutionException ex) {
             }
-            if (request.getResponseCode() >= 200 && request.getResponseCode() < 300) {
-                try {
-                    JSONParser p = new JSONParser();
-                    Map m = p.parseJSON(new InputStreamReader(new ByteArrayInputStream(request.getResponseData()), "UTF-8"));
-                    Result res = Result.fromContent(m);
-                    int dStatus = res.getAsInteger("status");
-                    if (dStatus > 0 && ((!isSandboxUrl && dStatus != 21007 && dStatus != 21002) || isSandboxUrl)) {
-                        // We're in the production, we got an error, and the error
-                        // wasn't that it was a sandbox receipt
-                        // Or we are in the sandbox and got an error.
-                        String eMessage = getErrorMessageForCode(dStatus);
-                        if (eMessage == null) {
-                            eMessage = "Unknown";
-                        }
+            deliver();
+        }
+
+        private void deliver() {
+            kill();
+            // getNow throws once the winner failed
+            Response r = winner.isCompletedExceptionally() ? null : winner.getNow(null);
+            if (r != null) {
+                response.onSuccess(r);
+            } else {
+                response.onError(AppleIAPValidator.this, error, errorCode, errorMessage);
+            }
+        }
+
+        private void kill() {
+            for (ConnectionRequest leg : legs) {
+                if (leg != null) {
+                    leg.kill();
+                }
+            }
+        }
 
-                        validatedData = new Response();
-                        validatedData.status = dStatus;
-                        validatedData.message = eMessage;
+        private class Leg implements Callback<Response> {
+            private final int otherEnvironmentStatus;
 
-                        applyResponseData(validatedData, res);
-                        validatedData.isValidated = false;
-                        response.onError(AppleIAPValidator.this, new IOException(eMessage), dStatus, eMessage);
-                        return;
+            Leg(int otherEnvironmentStatus) {
+                this.otherEnvironmentStatus = otherEnvironmentStatus;
+            }
 
+            @Override
+            public void onSuccess(Response value) {
+                winner.complete(value);
+            }
+
+            @Override
+            public void onError(Object sender, Throwable err, int code, String message) {
+                synchronized (EnvironmentRace.this) {
+                    // prefer an error from the host that recognized the receipt
+                    if (error == null || code != otherEnvironmentStatus) {
+                        error = err;
+                        errorCode = code;
+                        errorMessage = message;
                     }
-                    if (!isSandboxUrl && (dStatus == 21007 || dStatus == 21002)) {
-                        // We're in production, and we got an error other than
-                        // it being a sandbox receipt
-                        //validatedData.isValidated = false;
-                        validatePurchaseImpl(sandboxPath, fSecret, receipt, response);
-                        return;
-                    }
-                    //String latestReceipt = res.getAsString("latest_receipt");
+                }
+                if (outstanding.decrementAndGet() == 0) {
+                    winner.completeExceptionally(err);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a second identical request when the first one didn't answer within the hedge delay
+     * and answers with whichever request succeeds first. The other request is killed along with
+     * the fallback it sent to the other environment. The hedge only fails once every request it
+     * sent failed.
+     */
+    private class Hedge {
+        private final Callback<Response> response;
+        private final CompletableFuture<Response> winner = new CompletableFuture<>();
+        private final List<ConnectionRequest> requests = new ArrayList<>();
+        private int outstanding = 1;
+        private Throwable error;
+        private int errorCode;
+        private String errorMessage;
+
+        Hedge(Callback<Response> response) {
+            this.response = response;
+        }
+
+        void start(String url, String secret, String receipt, String fingerprint, boolean fallback, boolean wait, long deadline) {
+            hedgeBudget.requestSent();
+            sent(validatePurchaseImpl(url, secret, receipt, fingerprint, new Leg(), fallback, false, deadline));
+            final ScheduledFuture<?> timer = getScheduler().schedule(() -> hedge(url, secret, receipt, fingerprint, fallback, deadline),
+                    getHedgeDelay(), TimeUnit.MILLISECONDS);
+            winner.whenComplete((r, err) -> timer.cancel(false));
+            if (!wait) {
+                winner.whenComplete((r, err) -> deliver());
+                return;
+            }
+            try {
+                winner.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                kill();
+                response.onError(AppleIAPValidator.this, ex, 1, "Interrupted");
+                return;
+            } catch (ExecutionException ex) {
+            }
+            deliver();
+        }
+
+        private void hedge(String url, String secret, String receipt, String fingerprint, boolean fallback, long deadline) {
+            if (winner.isDone() || (deadline > 0 && System.currentTimeMillis() >= deadline) || !hedgeBudget.tryAcquire()) {
+                return;
+            }
+            synchronized (this) {
+                // the first request may have failed meanwhile
+                if (winner.isDone()) {
+                    return;
+                }
+                outstanding++;
+            }
+            hedgedRequests.incrementAndGet();
+            sent(validatePurchaseImpl(url, secret, receipt, fingerprint, new Leg(), fallback, false, deadline));
+        }
+
+        /**
+         * Keeps the request to kill it with the others, or kills it if the hedge was decided
+         */
+        private void sent(ConnectionRequest request) {
+            synchronized (this) {
+                requests.add(request);
+            }
+            if (winner.isDone()) {
+                request.kill();
+            }
+        }
+
+        private void deliver() {
+            kill();
+            // getNow throws once the winner failed
+            Response r = winner.isCompletedExceptionally() ? null : winner.getNow(null);
+            if (r != null) {
+                response.onSuccess(r);
+            } else {
+                response.onError(AppleIAPValidator.this, error, errorCode, errorMessage);
+            }
+        }
+
+        private synchronized void kill() {
+            for (ConnectionRequest request : requests) {
+                request.kill();
+            }
+        }
 
-                    validatedData = new Response();
-                    applyResponseData(validatedData, res);
+        private class Leg implements Callback<Response>, RequestTracker {
+            @Override
+            public void track(ConnectionRequest request) {
+                sent(request);
+            }
+
+            @Override
+            public void onSuccess(Response value) {
+                winner.complete(value);
+            }
 
-                    validatedData.isValidated = true;
-                    response.onSuccess(validatedData);
-                } catch (Throwable ex) {
-                    if (!isSandboxUrl) {
-                        validatedData.isValidated = false;
-                        validatePurchaseImpl(sandboxPath, fSecret, receipt, response);
+            @Override
+            public void onError(Object sender, Throwable err, int code, String message) {
+                synchronized (Hedge.this) {
+                    if (winner.isDone()) {
                         return;
-                    } else {
-                        ex.printStackTrace();
-                        response.onError(AppleIAPValidator.this, ex, 1, ex.getMessage());
+                    }
+                    error = err;
+                    errorCode = code;
+                    errorMessage = message;
+                    // the other request may still succeed
+                    if (--outstanding > 0) {
                         return;
                     }
                 }
+                winner.completeExceptionally(err);
+            }
+        }
+    }
 
-            } else {
-                response.onError(AppleIAPValidator.this, new IOException("Failed to connect"), evt.getResponseCode(), "Unexpected response code " + evt.getResponseCode());
+    /**
+     * The latencies of the recent successful verifyReceipt requests
+     */
+    static class LatencySamples {
+        private static final int MIN_SAMPLES = 20;
+        private final long[] samples = new long[256];
+        private int count;
+        private int position;
+
+        synchronized void add(long millis) {
+            samples[position] = millis;
+            position = (position + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * @return the latency at the percentile between 0 and 1 or -1 if there are too few samples
+         */
+        synchronized long percentile(double p) {
+            if (count < MIN_SAMPLES) {
+                return -1;
             }
-        });
-        request.addToQueueAndWait();
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) (p * count))];
+        }
+    }
 
+    /**
+     * When true a verifyReceipt request that didn't answer within the hedge percentile of the
+     * recent latencies is sent a second time and the first answer is used. Off by default.
+     *
+     * @return the hedgeRequests
+     */
+    public boolean isHedgeRequests() {
+        return hedgeRequests;
     }
 
-    void validatePurchase(String secret, String receipt, Callback<Response> response) {
-        validatePurchaseImpl(isSandBox ? sandboxPath : prodPath, secret, receipt, response);
+    /**
+     * When true a verifyReceipt request that didn't answer within the hedge percentile of the
+     * recent latencies is sent a second time and the first answer is used, the slower request
+     * is killed. Hedges draw from a budget of 10% of the requests so a slow store doesn't get
+     * twice the load.
+     *
+     * @param hedgeRequests the hedgeRequests to set
+     */
+    public void setHedgeRequests(boolean hedgeRequests) {
+        checkConfigurable();
+        this.hedgeRequests = hedgeRequests;
+    }
+
+    /**
+     * The percentile of the recent latencies after which a request is hedged
+     *
+     * @return the hedgePercentile
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * The percentile of the recent latencies after which a request is hedged between 0 and 1,
+     * defaults to 0.95
+     *
+     * @param hedgePercentile the hedgePercentile to set
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        checkConfigurable();
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * The number of hedges sent
+     *
+     * @return the hedged requests
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     * When true a receipt whose environment hasn't been seen before is sent to the production
+     * and the sandbox host at the same time instead of trying production first.
+     *
+     * @return the raceUnknownEnvironments
+     */
+    public boolean isRaceUnknownEnvironments() {
+        return raceUnknownEnvironments;
+    }
+
+    /**
+     * When true a receipt whose environment hasn't been seen before is sent to the production
+     * and the sandbox host at the same time instead of trying production first.
+     *
+     * @param raceUnknownEnvironments the raceUnknownEnvironments to set
+     */
+    public void setRaceUnknownEnvironments(boolean raceUnknownEnvironments) {
+        checkConfigurable();
+        this.raceUnknownEnvironments = raceUnknownEnvironments;
+    }
+
+    private static String text(Object o) {
+        return o == null ? null : o.toString();
     }
 
-    private static class TimeIndex {
+    /**
+     * Parses a numeric JSON value which Apple sends either as a number or as a string
+     *
+     * @return the value or null if it is missing or not a number
+     */
+    private static Long number(Object o) {
+        if (o == null) {
+            return null;
+        }
+        if (o instanceof Number) {
+            return ((Number) o).longValue();
+        }
+        String s = o.toString();
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException ex) {
+            try {
+                return (long) Double.parseDouble(s);
+            } catch (NumberFormatException ex2) {
+                return null;
+            }
+        }
+    }
 
-        long time;
-        int index;
+    private static long number(Object o, long defaultValue) {
+        Long l = number(o);
+        return l == null ? defaultValue : l;
+    }
 
-        TimeIndex(long time, int index) {
-            this.time = time;
-            this.index = index;
+    private static Long getSubscriptionExpireDate(Map item) {
+        Long exp = number(item.get("expires_date_ms"));
+        if (exp == null) {
+            exp = number(item.get("expires_date"));
         }
+        return exp;
     }
 
-    private static class Response {
+    static class Response {
 
         int status;
+        int weight;
         String message;
         boolean isValidated;
         private Result purchaseData;
 
+        /**
+         * Extracts the receipts from the in_app and latest_receipt_info arrays in a single pass
+         * over the parsed maps. When several entries share an original transaction id a later
+         * purchase replaces the earlier entry.
+         */
         public Receipt[] getReceipts(boolean ignoreExpired) {
-            if (purchaseData.get("receipt") == null) {
+            Object receiptObj = purchaseData.get("receipt");
+            if (!(receiptObj instanceof Map)) {
                 return null;
             }
-            Result receipts = Result.fromContent((Map) purchaseData.get("receipt"));
+            Map receipt = (Map) receiptObj;
+            Object inApp = receipt.get("in_app");
+            if (inApp == null) {
+                return new Receipt[0];
+            }
+            Object lri = receipt.get("latest_receipt_info");
+            int size = (inApp instanceof List ? ((List) inApp).size() : 0) + (lri instanceof List ? ((List) lri).size() : 0);
+
+            RenewalInfo renewal = new RenewalInfo(purchaseData.get("pending_renewal_info"));
+            String latestReceipt = text(purchaseData.get("latest_receipt"));
+            long now = System.currentTimeMillis();
             List<Receipt> data = new ArrayList<>();
-            if (receipts.get("in_app") != null) {
-                Map<String, TimeIndex> tids = new HashMap<String, TimeIndex>();
+            Map<String, Integer> tids = new HashMap<>(size * 2);
+            addReceipts(inApp, ignoreExpired, now, renewal, latestReceipt, tids, data);
+            addReceipts(lri, ignoreExpired, now, renewal, latestReceipt, tids, data);
+            return data.toArray(new Receipt[data.size()]);
+        }
 
-                List list = receipts.getAsArray("in_app");
-                Object lri = receipts.get("latest_receipt_info");
-                if (lri != null) {
-                    list.addAll(receipts.getAsArray("latest_receipt_info"));
-                }
-                for (Object aList : list) {
-                    Result item = Result.fromContent((Map) aList);
-                    String tid = item.getAsString("original_transaction_id");
-                    long pdate = item.getAsLong("purchase_date_ms");
-
-                    boolean autoRenew = false;
-                    if (item.getAsString("auto_renew_status") == null) {
-                        if (purchaseData.get("pending_renewal_info") != null) {
-                            autoRenew = ((LinkedHashMap<String, String>)purchaseData.get("pending_renewal_info")).get("auto_renew_status").equalsIgnoreCase("1");
-                        }
-                    } else {
-                        autoRenew = item.getAsInteger("auto_renew_status") == 1;
+        /**
+         * The earliest subscription expiry after now in the in_app and latest_receipt_info
+         * arrays, read from the parsed maps without extracting the receipts
+         *
+         * @return the expiry or Long.MAX_VALUE if no subscription expires after now
+         */
+        long getEarliestExpiry(long now) {
+            Object receiptObj = purchaseData.get("receipt");
+            if (!(receiptObj instanceof Map)) {
+                return Long.MAX_VALUE;
+            }
+            Map receipt = (Map) receiptObj;
+            return Math.min(earliestExpiry(receipt.get("in_app"), now), earliestExpiry(receipt.get("latest_receipt_info"), now));
+        }
+
+        private static long earliestExpiry(Object list, long now) {
+            long earliest = Long.MAX_VALUE;
+            if (list instanceof List) {
+                for (Object o : (List) list) {
+                    Long exp = getSubscriptionExpireDate((Map) o);
+                    if (exp != null && exp > now && exp < earliest) {
+                        earliest = exp;
                     }
+                }
+            }
+            return earliest;
+        }
 
-                    Long exp = getSubscriptionExpireDate(item);
-                    int index = data.size();
+        private static void addReceipts(Object list, boolean ignoreExpired, long now, RenewalInfo renewal, String latestReceipt,
+                                        Map<String, Integer> tids, List<Receipt> data) {
+            if (!(list instanceof List)) {
+                return;
+            }
+            for (Object o : (List) list) {
+                Map item = (Map) o;
+                String tid = text(item.get("original_transaction_id"));
+                long pdate = number(item.get("purchase_date_ms"), 0);
 
-                    if (ignoreExpired && exp != null && new Date().getTime() - exp >= 0) {
-                        continue;
-                    }
+                boolean autoRenew;
+                Object autoRenewStatus = item.get("auto_renew_status");
+                if (autoRenewStatus == null) {
+                    autoRenew = renewal.isAutoRenew(tid);
+                } else {
+                    autoRenew = number(autoRenewStatus, 0) == 1;
+                }
 
-                    if (tids.containsKey(tid) && tids.get(tid).time < pdate) {
-                        index = tids.get(tid).index;
-                    }
-                    tids.put(tid, new TimeIndex(pdate, index));
-                    Receipt pd = new Receipt();
-                    //pd.set= receipts.getAsString("bundle_id");
-                    pd.setTransactionId(item.getAsString("transaction_id"));
-                    pd.setOriginalTransactionId(item.getAsString("original_transaction_id"));
-                    pd.setSku(item.getAsString("product_id"));
-                    pd.setPurchaseDate(new Date(pdate));
-                    pd.setPackageName(item.getAsString("package_name"));
-                    pd.setAutoRenewing(autoRenew);
-                    if (item.get("cancellation_date") != null) {
-                        pd.setCancellationDate(new Date(item.getAsLong("cancellation_date")));
-                    }
-                    pd.setQuantity(item.getAsInteger("quantity"));
-                    if (exp != null) {
-                        pd.setExpiryDate(new Date(exp));
-                    }
+                Long exp = getSubscriptionExpireDate(item);
+                if (ignoreExpired && exp != null && now - exp >= 0) {
+                    continue;
+                }
 
-                    if (purchaseData.get("latest_receipt") != null) {
-                        Logger.getLogger(getClass().getSimpleName()).log(Level.INFO, "latest_receipt is not null");
-                        pd.setOrderData(purchaseData.getAsString("latest_receipt"));
-                    } else {
-                        Logger.getLogger(getClass().getSimpleName()).log(Level.INFO, "latest_receipt is null");
-                    }
-                    if (index < data.size()) {
-                        data.set(index, pd);
-                    } else {
-                        data.add(pd);
+                int index = data.size();
+                Integer previous = tids.get(tid);
+                if (previous != null && data.get(previous).getPurchaseDate().getTime() < pdate) {
+                    index = previous;
+                }
+                tids.put(tid, index);
+
+                Receipt pd = new Receipt();
+                pd.setTransactionId(text(item.get("transaction_id")));
+                pd.setOriginalTransactionId(tid);
+                pd.setSku(text(item.get("product_id")));
+                pd.setPurchaseDate(new Date(pdate));
+                pd.setPackageName(text(item.get("package_name")));
+                pd.setAutoRenewing(autoRenew);
+                Long cancellation = number(item.get("cancellation_date_ms"));
+                if (cancellation == null) {
+                    cancellation = number(item.get("cancellation_date"));
+                }
+                if (cancellation != null) {
+                    pd.setCancellationDate(new Date(cancellation));
+                }
+                pd.setQuantity((int) number(item.get("quantity"), 0));
+                if (exp != null) {
+                    pd.setExpiryDate(new Date(exp));
+                }
+                if (latestReceipt != null) {
+                    pd.setOrderData(latestReceipt);
+                }
+                if (index < data.size()) {
+                    data.set(index, pd);
+                } else {
+                    data.add(pd);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The auto renew status from pending_renewal_info, read once per response. Apple sends an
+     * array with an entry per original transaction, older responses a single object.
+     */
+    private static class RenewalInfo {
+        private Map<String, Boolean> byTransaction;
+        private boolean defaultStatus;
+
+        RenewalInfo(Object info) {
+            if (info instanceof Map) {
+                defaultStatus = isAutoRenew((Map) info);
+            } else if (info instanceof List && !((List) info).isEmpty()) {
+                List list = (List) info;
+                byTransaction = new HashMap<>();
+                for (Object o : list) {
+                    if (o instanceof Map) {
+                        Map m = (Map) o;
+                        String tid = text(m.get("original_transaction_id"));
+                        if (tid != null) {
+                            byTransaction.put(tid, isAutoRenew(m));
+                        }
                     }
-                    //System.out.println("Data now "+data);
+                }
+                if (list.get(0) instanceof Map) {
+                    defaultStatus = isAutoRenew((Map) list.get(0));
                 }
             }
-            return data.toArray(new Receipt[data.size()]);
         }
 
+        private static boolean isAutoRenew(Map m) {
+            Object status = m.get("auto_renew_status");
+            return status != null && "1".equalsIgnoreCase(status.toString());
+        }
+
+        boolean isAutoRenew(String originalTransactionId) {
+            if (byTransaction != null && originalTransactionId != null) {
+                Boolean b = byTransaction.get(originalTransactionId);
+                if (b != null) {
+                    return b;
+                }
+            }
+            return defaultStatus;
+        }
     }
 
     private class ReceiptHolder {
@@ -333,6 +1093,18 @@ public class AppleIAPValidator extends IAPValidator {
         Throwable ex;
     }
 
-    private boolean isSandBox;
-    private boolean isExcludeOldTransactions;
+    private final boolean isSandBox;
+    private final boolean isExcludeOldTransactions;
+    private volatile AppleLocalReceiptDecoder localDecoder;
+    private volatile AppleJWSVerifier jwsVerifier;
+    private final AppleEnvironmentRouter router = new AppleEnvironmentRouter();
+    private boolean raceUnknownEnvironments;
+    private boolean hedgeRequests;
+    private double hedgePercentile = 0.95;
+    private final RetryPolicy.Budget hedgeBudget = new RetryPolicy.Budget(0.1, 1, 10);
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final LatencySamples latencies = new LatencySamples();
+    private long responseCacheMaxTtl;
+    private final CallbackCoalescer<Response> inFlight = new CallbackCoalescer<>();
+    private final ExpiringCache<String, Response> responseCache = new ExpiringCache<>(10000, 64L * 1024 * 1024);
 }
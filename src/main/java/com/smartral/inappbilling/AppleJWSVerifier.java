@@ -0,0 +1,265 @@
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.io.JSONParser;
+import com.smartral.inappbilling.utils.payment.Receipt;
+import com.smartral.inappbilling.utils.util.Base64;
+import com.smartral.inappbilling.utils.util.ExpiringCache;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies the JWS signed transactions and renewal infos the App Store hands to devices. The
+ * signature is ES256, the signing certificate chain is carried in the x5c header. It must be
+ * exactly an Apple signing certificate, the Apple WWDR intermediate and the configured Apple
+ * root. Validated chains are cached by fingerprint, a token with a known chain costs a single
+ * ECDSA verification.
+ *
+ * @author shannah
+ */
+public class AppleJWSVerifier {
+
+    private static final long MAX_CHAIN_TTL = 24 * 60 * 60 * 1000L;
+
+    /**
+     * The x5c header holds the signing certificate, the intermediate and the root
+     */
+    private static final int CHAIN_LENGTH = 3;
+
+    private final X509Certificate appleRoot;
+    private final ExpiringCache<String, PublicKey> chains = new ExpiringCache<>(1000, Long.MAX_VALUE);
+
+    /**
+     * @param appleRoot the Apple root certificate the x5c chains must end in
+     */
+    public AppleJWSVerifier(X509Certificate appleRoot) {
+        if (appleRoot == null) {
+            throw new IllegalArgumentException("The Apple root certificate is required");
+        }
+        this.appleRoot = appleRoot;
+    }
+
+    /**
+     * @param appleRoot the DER or PEM encoded Apple root certificate the x5c chains must end in
+     * @throws IOException if the certificate can't be read
+     */
+    public AppleJWSVerifier(InputStream appleRoot) throws IOException {
+        try {
+            this.appleRoot = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(appleRoot);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Failed to read the Apple root certificate", ex);
+        }
+    }
+
+    /**
+     * Indicates whether the given string has the compact JWS form of a signed transaction
+     */
+    public static boolean isJWS(String s) {
+        if (s == null) {
+            return false;
+        }
+        int first = s.indexOf('.');
+        return first > 0 && s.indexOf('.', first + 1) > first + 1 && s.indexOf('.', s.indexOf('.', first + 1) + 1) < 0;
+    }
+
+    /**
+     * Verifies the token and returns its payload
+     *
+     * @param jws the compact JWS
+     * @return the decoded payload
+     * @throws IOException if the token is malformed or its signature or chain doesn't verify
+     */
+    public Map<String, Object> verify(String jws) throws IOException {
+        if (!isJWS(jws)) {
+            throw new IOException("Malformed JWS");
+        }
+        int first = jws.indexOf('.');
+        int second = jws.indexOf('.', first + 1);
+        Map<String, Object> header = parse(decodeSegment(jws.substring(0, first)));
+        if (!"ES256".equals(header.get("alg"))) {
+            throw new IOException("Unsupported JWS algorithm " + header.get("alg"));
+        }
+        if (!(header.get("x5c") instanceof List) || ((List<?>) header.get("x5c")).isEmpty()) {
+            throw new IOException("The JWS has no x5c certificate chain");
+        }
+        PublicKey key = getSigningKey((List<?>) header.get("x5c"));
+        byte[] sig = decodeSegment(jws.substring(second + 1));
+        if (sig.length != 64) {
+            throw new IOException("Malformed ES256 signature");
+        }
+        try {
+            Signature verifier = Signature.getInstance("SHA256withECDSA");
+            verifier.initVerify(key);
+            verifier.update(jws.substring(0, second).getBytes("US-ASCII"));
+            if (!verifier.verify(toDER(sig))) {
+                throw new IOException("The JWS signature doesn't verify");
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Failed to verify the JWS signature", ex);
+        }
+        return parse(decodeSegment(jws.substring(first + 1, second)));
+    }
+
+    /**
+     * Verifies a signed transaction and its optional signed renewal info and maps them to a receipt
+     *
+     * @param signedTransaction the JWS signed transaction
+     * @param signedRenewalInfo the JWS signed renewal info of the subscription or null
+     * @param bundleId the bundle id the transaction must belong to or null to accept any bundle
+     * @return the receipt
+     * @throws IOException if either token doesn't verify or the transaction belongs to another bundle
+     */
+    public Receipt verifyTransaction(String signedTransaction, String signedRenewalInfo, String bundleId) throws IOException {
+        Map<String, Object> tx = verify(signedTransaction);
+        if (bundleId != null && !bundleId.equals(tx.get("bundleId"))) {
+            throw new IOException("The transaction belongs to " + tx.get("bundleId") + " and not to " + bundleId);
+        }
+        Receipt pd = new Receipt();
+        pd.setStoreCode(Receipt.STORE_CODE_ITUNES);
+        pd.setTransactionId(text(tx.get("transactionId")));
+        pd.setOriginalTransactionId(text(tx.get("originalTransactionId")));
+        pd.setSku(text(tx.get("productId")));
+        pd.setPackageName(text(tx.get("bundleId")));
+        Long purchase = number(tx.get("purchaseDate"));
+        pd.setPurchaseDate(new Date(purchase == null ? 0 : purchase));
+        Long expires = number(tx.get("expiresDate"));
+        if (expires != null) {
+            pd.setExpiryDate(new Date(expires));
+        }
+        Long revocation = number(tx.get("revocationDate"));
+        if (revocation != null) {
+            pd.setCancellationDate(new Date(revocation));
+        }
+        Long quantity = number(tx.get("quantity"));
+        pd.setQuantity(quantity == null ? 1 : quantity.intValue());
+        boolean autoRenew = false;
+        if (signedRenewalInfo != null) {
+            Map<String, Object> renewal = verify(signedRenewalInfo);
+            if (pd.getOriginalTransactionId() != null && !pd.getOriginalTransactionId().equals(text(renewal.get("originalTransactionId")))) {
+                throw new IOException("The renewal info belongs to another subscription");
+            }
+            Long status = number(renewal.get("autoRenewStatus"));
+            autoRenew = status != null && status == 1;
+        }
+        pd.setAutoRenewing(autoRenew);
+        return pd;
+    }
+
+    /**
+     * Limits the number of validated certificate chains kept
+     */
+    public void setChainCacheMaxEntries(int maxEntries) {
+        chains.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Returns the public key of the leaf certificate, validating the chain unless it was
+     * validated before
+     */
+    private PublicKey getSigningKey(List<?> x5c) throws IOException {
+        if (x5c.size() != CHAIN_LENGTH) {
+            throw new IOException("The x5c chain has " + x5c.size() + " certificates instead of " + CHAIN_LENGTH);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Object o : x5c) {
+            sb.append(o).append('.');
+        }
+        String fingerprint = AppleEnvironmentRouter.fingerprint(sb.toString());
+        PublicKey key = chains.get(fingerprint);
+        if (key != null) {
+            return key;
+        }
+        try {
+            CertificateFactory cf = CertificateFactory.getInstance("X.509");
+            X509Certificate[] chain = new X509Certificate[x5c.size()];
+            for (int i = 0; i < chain.length; i++) {
+                chain[i] = (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(Base64.decode(String.valueOf(x5c.get(i)).getBytes("US-ASCII"))));
+            }
+            Date now = new Date();
+            long expires = now.getTime() + MAX_CHAIN_TTL;
+            for (int i = 0; i < chain.length; i++) {
+                chain[i].checkValidity(now);
+                expires = Math.min(expires, chain[i].getNotAfter().getTime());
+                if (i + 1 < chain.length) {
+                    if (chain[i + 1].getBasicConstraints() < 0) {
+                        throw new IOException("The x5c chain contains a certificate that isn't a CA");
+                    }
+                    chain[i].verify(chain[i + 1].getPublicKey());
+                }
+            }
+            if (!chain[chain.length - 1].equals(appleRoot)) {
+                throw new IOException("The x5c chain doesn't end in the Apple root");
+            }
+            if (chain[0].getBasicConstraints() >= 0 || !AppleLocalReceiptDecoder.hasExtension(chain[0], AppleLocalReceiptDecoder.RECEIPT_SIGNING_OID)) {
+                throw new IOException("The JWS isn't signed by an Apple signing certificate");
+            }
+            if (!AppleLocalReceiptDecoder.hasExtension(chain[1], AppleLocalReceiptDecoder.WWDR_INTERMEDIATE_OID)) {
+                throw new IOException("The JWS signing certificate isn't issued by the Apple WWDR intermediate");
+            }
+            key = chain[0].getPublicKey();
+            chains.put(fingerprint, key, expires - now.getTime(), 1);
+            return key;
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            throw new IOException("The x5c chain doesn't verify against the Apple root", ex);
+        }
+    }
+
+    private static byte[] toDER(byte[] sig) throws IOException {
+        BigInteger r = new BigInteger(1, Arrays.copyOfRange(sig, 0, 32));
+        BigInteger s = new BigInteger(1, Arrays.copyOfRange(sig, 32, 64));
+        return new DERSequence(new ASN1Encodable[]{new ASN1Integer(r), new ASN1Integer(s)}).getEncoded();
+    }
+
+    private static byte[] decodeSegment(String segment) throws IOException {
+        StringBuilder sb = new StringBuilder(segment.length() + 3);
+        sb.append(segment.replace('-', '+').replace('_', '/'));
+        while (sb.length() % 4 != 0) {
+            sb.append('=');
+        }
+        byte[] out = Base64.decode(sb.toString().getBytes("US-ASCII"));
+        if (out == null) {
+            throw new IOException("Malformed JWS segment");
+        }
+        return out;
+    }
+
+    private static Map<String, Object> parse(byte[] json) throws IOException {
+        return new JSONParser().parseJSON(new InputStreamReader(new ByteArrayInputStream(json), "UTF-8"));
+    }
+
+    private static String text(Object o) {
+        if (o instanceof Double) {
+            return String.valueOf(((Double) o).longValue());
+        }
+        return o == null ? null : o.toString();
+    }
+
+    private static Long number(Object o) {
+        if (o instanceof Number) {
+            return ((Number) o).longValue();
+        }
+        if (o != null) {
+            try {
+                return Long.parseLong(o.toString());
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
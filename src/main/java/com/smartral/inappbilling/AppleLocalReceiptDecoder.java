@@ -0,0 +1,338 @@
+package com.smartral.inappbilling;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1Set;
+import org.bouncycastle.asn1.ASN1String;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessable;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.util.Store;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Decodes an App Store receipt locally. The receipt is a PKCS#7 container signed by Apple, its
+ * payload is a set of ASN.1 attributes. The signature and the certificate chain are verified
+ * against a configured Apple root certificate, the attributes are returned in the shape of a
+ * verifyReceipt response so they map to receipts exactly like the network path.
+ *
+ * @author shannah
+ */
+public class AppleLocalReceiptDecoder {
+
+    private static final int BUNDLE_ID = 2;
+    private static final int APPLICATION_VERSION = 3;
+    private static final int CREATION_DATE = 12;
+    private static final int IN_APP = 17;
+    private static final int ORIGINAL_APPLICATION_VERSION = 19;
+    private static final int EXPIRATION_DATE = 21;
+
+    private static final int QUANTITY = 1701;
+    private static final int PRODUCT_ID = 1702;
+    private static final int TRANSACTION_ID = 1703;
+    private static final int PURCHASE_DATE = 1704;
+    private static final int ORIGINAL_TRANSACTION_ID = 1705;
+    private static final int ORIGINAL_PURCHASE_DATE = 1706;
+    private static final int EXPIRES_DATE = 1708;
+    private static final int WEB_ORDER_LINE_ITEM_ID = 1711;
+    private static final int CANCELLATION_DATE = 1712;
+    private static final int IS_TRIAL_PERIOD = 1713;
+    private static final int IS_IN_INTRO_OFFER_PERIOD = 1719;
+
+    /**
+     * The extension marking the certificates Apple signs receipts and transactions with
+     */
+    static final String RECEIPT_SIGNING_OID = "1.2.840.113635.100.6.11.1";
+
+    /**
+     * The extension marking the Apple Worldwide Developer Relations intermediate
+     */
+    static final String WWDR_INTERMEDIATE_OID = "1.2.840.113635.100.6.2.1";
+
+    private final X509Certificate appleRoot;
+
+    /**
+     * @param appleRoot the Apple root certificate receipts must chain up to
+     */
+    public AppleLocalReceiptDecoder(X509Certificate appleRoot) {
+        if (appleRoot == null) {
+            throw new IllegalArgumentException("The Apple root certificate is required");
+        }
+        this.appleRoot = appleRoot;
+    }
+
+    /**
+     * @param appleRoot the DER or PEM encoded Apple root certificate receipts must chain up to
+     * @throws IOException if the certificate can't be read
+     */
+    public AppleLocalReceiptDecoder(InputStream appleRoot) throws IOException {
+        this(readCertificate(appleRoot));
+    }
+
+    private static X509Certificate readCertificate(InputStream input) throws IOException {
+        try {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(input);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Failed to read the Apple root certificate", ex);
+        }
+    }
+
+    /**
+     * Verifies and decodes the base64 encoded receipt
+     *
+     * @param receipt the base64 encoded receipt as sent by the device
+     * @param bundleId the bundle id the receipt must belong to or null to accept any bundle
+     * @return the receipt in the shape of a verifyReceipt response with a status of 0
+     * @throws IOException if the receipt is malformed, its signature or certificate chain doesn't
+     *                     verify or it belongs to another bundle
+     */
+    public Map<String, Object> decode(String receipt, String bundleId) throws IOException {
+        CMSSignedData signed;
+        byte[] content;
+        try {
+            signed = new CMSSignedData(Base64.decode(receipt));
+            CMSProcessable processable = signed.getSignedContent();
+            if (processable == null) {
+                throw new IOException("The receipt has no content");
+            }
+            content = (byte[]) processable.getContent();
+        } catch (CMSException | RuntimeException ex) {
+            throw new IOException("Malformed receipt", ex);
+        }
+
+        Map<String, Object> decoded = new LinkedHashMap<>();
+        List<Object> inApp = new ArrayList<>();
+        Date created = null;
+        for (ASN1Sequence attribute : attributes(content)) {
+            int type = ASN1Integer.getInstance(attribute.getObjectAt(0)).getValue().intValue();
+            byte[] value = ASN1OctetString.getInstance(attribute.getObjectAt(2)).getOctets();
+            switch (type) {
+                case BUNDLE_ID:
+                    decoded.put("bundle_id", string(value));
+                    break;
+                case APPLICATION_VERSION:
+                    decoded.put("application_version", string(value));
+                    break;
+                case ORIGINAL_APPLICATION_VERSION:
+                    decoded.put("original_application_version", string(value));
+                    break;
+                case CREATION_DATE:
+                    created = date(value);
+                    putDate(decoded, "receipt_creation_date_ms", created);
+                    break;
+                case EXPIRATION_DATE:
+                    putDate(decoded, "expiration_date_ms", date(value));
+                    break;
+                case IN_APP:
+                    inApp.add(decodeInApp(value));
+                    break;
+            }
+        }
+        decoded.put("in_app", inApp);
+
+        if (bundleId != null && !bundleId.equals(decoded.get("bundle_id"))) {
+            throw new IOException("The receipt belongs to " + decoded.get("bundle_id") + " and not to " + bundleId);
+        }
+        verify(signed, created);
+
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("status", 0);
+        out.put("receipt", decoded);
+        return out;
+    }
+
+    private static Map<String, Object> decodeInApp(byte[] content) throws IOException {
+        Map<String, Object> item = new LinkedHashMap<>();
+        for (ASN1Sequence attribute : attributes(content)) {
+            int type = ASN1Integer.getInstance(attribute.getObjectAt(0)).getValue().intValue();
+            byte[] value = ASN1OctetString.getInstance(attribute.getObjectAt(2)).getOctets();
+            switch (type) {
+                case QUANTITY:
+                    item.put("quantity", integer(value));
+                    break;
+                case PRODUCT_ID:
+                    item.put("product_id", string(value));
+                    break;
+                case TRANSACTION_ID:
+                    item.put("transaction_id", string(value));
+                    break;
+                case ORIGINAL_TRANSACTION_ID:
+                    item.put("original_transaction_id", string(value));
+                    break;
+                case PURCHASE_DATE:
+                    putDate(item, "purchase_date_ms", date(value));
+                    break;
+                case ORIGINAL_PURCHASE_DATE:
+                    putDate(item, "original_purchase_date_ms", date(value));
+                    break;
+                case EXPIRES_DATE:
+                    putDate(item, "expires_date_ms", date(value));
+                    break;
+                case CANCELLATION_DATE:
+                    putDate(item, "cancellation_date_ms", date(value));
+                    break;
+                case WEB_ORDER_LINE_ITEM_ID:
+                    item.put("web_order_line_item_id", integer(value));
+                    break;
+                case IS_TRIAL_PERIOD:
+                    item.put("is_trial_period", String.valueOf("1".equals(integer(value))));
+                    break;
+                case IS_IN_INTRO_OFFER_PERIOD:
+                    item.put("is_in_intro_offer_period", String.valueOf("1".equals(integer(value))));
+                    break;
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Verifies the signature of the receipt and its certificate chain. The signing certificate
+     * must be an Apple receipt signing certificate issued by the Apple WWDR intermediate, which in
+     * turn must be issued by the Apple root. The certificates must have been valid when the
+     * receipt was created.
+     */
+    private void verify(CMSSignedData signed, Date created) throws IOException {
+        try {
+            Iterator<SignerInformation> signers = signed.getSignerInfos().getSigners().iterator();
+            if (!signers.hasNext()) {
+                throw new IOException("The receipt isn't signed");
+            }
+            SignerInformation signer = signers.next();
+            Store<X509CertificateHolder> store = signed.getCertificates();
+            JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+            List<X509Certificate> certificates = new ArrayList<>();
+            X509Certificate leaf = null;
+            for (X509CertificateHolder holder : store.getMatches(null)) {
+                X509Certificate certificate = converter.getCertificate(holder);
+                certificates.add(certificate);
+                if (leaf == null && signer.getSID().match(holder)) {
+                    leaf = certificate;
+                }
+            }
+            if (leaf == null) {
+                throw new IOException("The receipt doesn't contain its signing certificate");
+            }
+            if (leaf.getBasicConstraints() >= 0 || !hasExtension(leaf, RECEIPT_SIGNING_OID)) {
+                throw new IOException("The receipt isn't signed by an Apple receipt signing certificate");
+            }
+            if (!signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(leaf))) {
+                throw new IOException("The receipt signature doesn't verify");
+            }
+            X509Certificate intermediate = findIssuer(leaf, certificates);
+            if (intermediate == null || intermediate.equals(appleRoot) || !hasExtension(intermediate, WWDR_INTERMEDIATE_OID)) {
+                throw new IOException("The receipt signing certificate isn't issued by the Apple WWDR intermediate");
+            }
+            if (!intermediate.getIssuerX500Principal().equals(appleRoot.getSubjectX500Principal())) {
+                throw new IOException("The receipt isn't signed by a certificate issued by the Apple root");
+            }
+            intermediate.verify(appleRoot.getPublicKey());
+            Date at = created == null ? new Date() : created;
+            leaf.checkValidity(at);
+            intermediate.checkValidity(at);
+        } catch (CMSException | OperatorCreationException | GeneralSecurityException ex) {
+            throw new IOException("Failed to verify the receipt signature", ex);
+        }
+    }
+
+    /**
+     * Indicates whether the certificate carries the given extension
+     */
+    static boolean hasExtension(X509Certificate certificate, String oid) {
+        return certificate.getExtensionValue(oid) != null;
+    }
+
+    private static X509Certificate findIssuer(X509Certificate cert, List<X509Certificate> certificates) {
+        for (X509Certificate candidate : certificates) {
+            if (candidate != cert && candidate.getBasicConstraints() >= 0
+                    && candidate.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+                try {
+                    cert.verify(candidate.getPublicKey());
+                    return candidate;
+                } catch (GeneralSecurityException ex) {
+                    // not the issuer, keep looking
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<ASN1Sequence> attributes(byte[] content) throws IOException {
+        List<ASN1Sequence> out = new ArrayList<>();
+        try {
+            ASN1Set set = ASN1Set.getInstance(ASN1Primitive.fromByteArray(content));
+            for (int i = 0; i < set.size(); i++) {
+                ASN1Sequence attribute = ASN1Sequence.getInstance(set.getObjectAt(i));
+                if (attribute.size() >= 3) {
+                    out.add(attribute);
+                }
+            }
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed receipt payload", ex);
+        }
+        return out;
+    }
+
+    private static ASN1Encodable value(byte[] value) throws IOException {
+        try {
+            return ASN1Primitive.fromByteArray(value);
+        } catch (RuntimeException ex) {
+            throw new IOException("Malformed receipt attribute", ex);
+        }
+    }
+
+    private static String string(byte[] value) throws IOException {
+        ASN1Encodable v = value(value);
+        return v instanceof ASN1String ? ((ASN1String) v).getString() : null;
+    }
+
+    private static String integer(byte[] value) throws IOException {
+        ASN1Encodable v = value(value);
+        return v instanceof ASN1Integer ? ((ASN1Integer) v).getValue().toString() : null;
+    }
+
+    /**
+     * Apple encodes dates as RFC 3339 strings, empty when the date isn't set
+     */
+    private static Date date(byte[] value) throws IOException {
+        String s = string(value);
+        if (s == null || s.length() == 0) {
+            return null;
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss" + (s.indexOf('.') > -1 ? ".SSS" : "") + "'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(s);
+        } catch (ParseException ex) {
+            throw new IOException("Malformed receipt date " + s, ex);
+        }
+    }
+
+    private static void putDate(Map<String, Object> m, String key, Date date) {
+        if (date != null) {
+            m.put(key, String.valueOf(date.getTime()));
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.io.JSONParseCallback;
+import com.smartral.inappbilling.utils.io.JSONParser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Parses a verifyReceipt response straight from the connection stream. Only the parts of the
+ * response the validator reads are materialized, everything else is skipped as it streams by.
+ *
+ * @author shannah
+ */
+class AppleResponseParser implements JSONParseCallback {
+
+    private static final Set<String> ROOT_KEYS = new HashSet<>(Arrays.asList(
+            "status", "receipt", "latest_receipt_info", "pending_renewal_info", "latest_receipt"));
+
+    private static final Set<String> RECEIPT_KEYS = new HashSet<>(Arrays.asList(
+            "bundle_id", "in_app", "latest_receipt_info"));
+
+    private static class Frame {
+        final String name;
+        final Object container;
+        String key;
+
+        Frame(String name, Object container) {
+            this.name = name;
+            this.container = container;
+        }
+    }
+
+    private final List<Frame> stack = new ArrayList<>();
+    private Map<String, Object> result;
+    private boolean complete;
+    private long bytesRead;
+
+    /**
+     * Parses the response read from the given stream
+     *
+     * @param input the response stream, it is closed once the response was read
+     * @return the parser holding the response
+     * @throws IOException if the stream failed or didn't contain a complete response
+     */
+    static AppleResponseParser parse(InputStream input) throws IOException {
+        final AppleResponseParser parser = new AppleResponseParser();
+        InputStream counting = new FilterInputStream(input) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b > -1) {
+                    parser.bytesRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int r = super.read(b, off, len);
+                if (r > 0) {
+                    parser.bytesRead += r;
+                }
+                return r;
+            }
+        };
+        JSONParser.parse(new InputStreamReader(counting, "UTF-8"), parser);
+        if (!parser.complete || parser.result.get("status") == null) {
+            throw new IOException("Incomplete verifyReceipt response after " + parser.bytesRead + " bytes");
+        }
+        return parser;
+    }
+
+    /**
+     * The materialized parts of the response
+     */
+    Map<String, Object> getResult() {
+        return result;
+    }
+
+    /**
+     * The number of bytes read from the stream
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    private Frame top() {
+        return stack.get(stack.size() - 1);
+    }
+
+    /**
+     * Returns the container the next value should be added to or null if the value is skipped
+     */
+    private Object target(Frame f) {
+        if (f.container == null) {
+            return null;
+        }
+        if (f.container instanceof Map) {
+            if (f.key == null) {
+                return null;
+            }
+            if (stack.size() == 1) {
+                return ROOT_KEYS.contains(f.key) ? f.container : null;
+            }
+            if (stack.size() == 2 && "receipt".equals(f.name)) {
+                return RECEIPT_KEYS.contains(f.key) ? f.container : null;
+            }
+        }
+        return f.container;
+    }
+
+    private void add(Object value) {
+        Frame f = top();
+        Object target = target(f);
+        if (target instanceof Map) {
+            // containers are only ever created by push as Map<String, Object> or List<Object>
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) target;
+            map.put(f.key, value);
+        } else if (target instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>) target;
+            list.add(value);
+        }
+        f.key = null;
+    }
+
+    private void push(Object container, boolean isMap) {
+        if (stack.isEmpty()) {
+            if (isMap) {
+                result = new LinkedHashMap<>();
+                stack.add(new Frame(null, result));
+            } else {
+                stack.add(new Frame(null, null));
+            }
+            return;
+        }
+        Frame f = top();
+        String name = f.key;
+        Object value = target(f) != null ? container : null;
+        if (value != null) {
+            add(value);
+        } else {
+            f.key = null;
+        }
+        stack.add(new Frame(name, value));
+    }
+
+    private void pop() {
+        stack.remove(stack.size() - 1);
+        if (stack.isEmpty()) {
+            complete = result != null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void startBlock(String blockName) {
+        push(new LinkedHashMap<String, Object>(), true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endBlock(String blockName) {
+        pop();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void startArray(String arrayName) {
+        push(new ArrayList<Object>(), false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void endArray(String arrayName) {
+        pop();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stringToken(String tok) {
+        if (stack.isEmpty()) {
+            return;
+        }
+        Frame f = top();
+        if (f.container instanceof Map || f.container == null) {
+            if (f.key == null) {
+                f.key = tok;
+                return;
+            }
+            if (tok == null) {
+                f.key = null;
+                return;
+            }
+        }
+        add(tok);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void numericToken(double tok) {
+        if (!stack.isEmpty()) {
+            add(new Double(tok));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void longToken(long tok) {
+        if (!stack.isEmpty()) {
+            add(new Long(tok));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void keyValue(String key, String value) {
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isAlive() {
+        return !complete;
+    }
+}
@@ -6,22 +6,34 @@
 package com.smartral.inappbilling;
 
 import com.smartral.inappbilling.utils.io.ConnectionRequest;
+import com.smartral.inappbilling.utils.io.JSONParser;
 import com.smartral.inappbilling.utils.io.NetworkEvent;
+import com.smartral.inappbilling.utils.io.RateLimiter;
 import com.smartral.inappbilling.utils.payment.Receipt;
 import com.smartral.inappbilling.utils.processing.Result;
 import com.smartral.inappbilling.utils.ui.events.ActionEvent;
 import com.smartral.inappbilling.utils.ui.events.ActionListener;
 import com.smartral.inappbilling.utils.util.Base64;
 import com.smartral.inappbilling.utils.util.Callback;
+import com.smartral.inappbilling.utils.util.CallbackCoalescer;
+import com.smartral.inappbilling.utils.util.ExpiringCache;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,30 +42,107 @@ import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DEROctetString;
 import org.bouncycastle.asn1.pkcs.RSAPrivateKey;
 import org.bouncycastle.crypto.CryptoException;
-import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.Signer;
+import org.bouncycastle.crypto.digests.SHA1Digest;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.params.RSAKeyParameters;
+import org.bouncycastle.crypto.params.RSAPrivateCrtKeyParameters;
 import org.bouncycastle.crypto.signers.RSADigestSigner;
+import org.bouncycastle.crypto.util.PublicKeyFactory;
 
 /**
  * @author shannah
  */
 public class GooglePlayValidator extends IAPValidator {
 
-    private static final int STATUS_VALIDATION_SUCCESS = 1;
     private static final int STATUS_VALIDATION_FAILURE = 2;
 
-    private GoogleTokenMap googleTokenMap = new GoogleTokenMap();
+    /**
+     * Paces the calls of all validators to stay within the Play Developer API quota, by default
+     * 3000 queries per minute or the iap.googlePlayQuotaPerMinute system property
+     */
+    private static final RateLimiter rateLimiter;
+
+    static {
+        double perSecond = Integer.getInteger("iap.googlePlayQuotaPerMinute", 3000) / 60.0;
+        rateLimiter = new RateLimiter(perSecond, Math.max(1, perSecond));
+    }
+
+    private static final String JWT_HEADER_ENC = encodeJWTSegment("{\"alg\":\"RS256\",\"typ\":\"JWT\"}".getBytes());
+
+    private volatile SigningKey signingKey;
+    private boolean verifySigningKey = true;
+    private long subscriptionCacheMaxTtl;
+    private long productCacheTtl;
+    private final CallbackCoalescer<SubscriptionData> inFlight = new CallbackCoalescer<>();
+    private final ExpiringCache<String, SubscriptionData> purchaseCache = new ExpiringCache<>(100000, Long.MAX_VALUE);
+    private final Map<String, RSAKeyParameters> licenseKeys = new ConcurrentHashMap<>();
+    private boolean trustSignature;
+    private final GoogleTokenManager tokenManager = new GoogleTokenManager(this::refreshGoogleTokens);
 
     @Override
     public Receipt[] validate(Receipt receipt, boolean isSubs) throws IOException {
-        String orderData = receipt.getOrderData();
-        Result res = Result.fromContent(orderData, "json");
-        String receiptData = Result.fromContent((Map) res.get("data")).toString();
-        String signature = res.getAsString("signature");
+        return validate(receipt, isSubs, getDefaultDeadline());
+    }
 
-        final Receipt out = new Receipt();
+    @Override
+    public Receipt[] validate(Receipt receipt, boolean isSubs, long deadline) throws IOException {
+        final Receipt[] result = new Receipt[1];
+        final Throwable[] error = new Throwable[1];
+        validateImpl(receipt, copyReceipt(receipt), isSubs, new Callback<Receipt>() {
+            @Override
+            public void onSuccess(Receipt value) {
+                result[0] = value;
+            }
+
+            @Override
+            public void onError(Object o, Throwable thrwbl, int i, String string) {
+                Logger.getLogger(getClass().getSimpleName()).log(Level.INFO, "ERROR_GOOGLE_VALIDATION" + thrwbl.getLocalizedMessage());
+                error[0] = thrwbl;
+            }
+        }, true, deadline);
+
+        if (result[0] != null) {
+            return new Receipt[]{result[0]};
+        } else if (error[0] != null) {
+            if (error[0] instanceof IOException) {
+                throw (IOException) error[0];
+            } else {
+                throw new RuntimeException(error[0]);
+            }
+        } else {
+            throw new RuntimeException("Async network requests not supported.  Thread " + Thread.currentThread());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Receipt[]> validateAsync(Receipt receipt, boolean isSubs) {
+        return validateAsync(receipt, isSubs, getDefaultDeadline());
+    }
+
+    @Override
+    public CompletableFuture<Receipt[]> validateAsync(Receipt receipt, boolean isSubs, long deadline) {
+        final CompletableFuture<Receipt[]> future = new CompletableFuture<>();
+        try {
+            validateImpl(receipt, copyReceipt(receipt), isSubs, new Callback<Receipt>() {
+                @Override
+                public void onSuccess(Receipt value) {
+                    future.complete(new Receipt[]{value});
+                }
+
+                @Override
+                public void onError(Object o, Throwable thrwbl, int i, String string) {
+                    future.completeExceptionally(thrwbl);
+                }
+            }, false, deadline);
+        } catch (RuntimeException ex) {
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+
+    private static Receipt copyReceipt(Receipt receipt) {
+        Receipt out = new Receipt();
         out.setTransactionId(receipt.getTransactionId());
         out.setInternalId(receipt.getInternalId());
         out.setOrderData(receipt.getOrderData());
@@ -64,7 +153,34 @@ public class GooglePlayValidator extends IAPValidator {
         out.setStoreCode(receipt.getStoreCode());
         out.setSku(receipt.getSku());
         out.setQuantity(receipt.getQuantity());
-        validatePurchase(receiptData, signature, new Callback<SubscriptionData>() {
+        return out;
+    }
+
+    /**
+     * Validates the receipt against the Play Developer API and fills {@code out} with the result.
+     *
+     * @param wait true to block on the network requests, false to queue them
+     * @param deadline the time in milliseconds since the epoch the requests must be done by or 0
+     */
+    private void validateImpl(Receipt receipt, final Receipt out, boolean isSubs, final Callback<Receipt> cb, boolean wait, long deadline) {
+        String orderData = receipt.getOrderData();
+        Map<String, Object> res;
+        try {
+            res = new JSONParser().parseJSON(new StringReader(orderData));
+        } catch (IOException ex) {
+            cb.onError(this, ex, STATUS_VALIDATION_FAILURE, ex.getMessage());
+            return;
+        }
+        final Map<String, Object> purchase;
+        try {
+            purchase = purchaseData(res.get("data"));
+        } catch (IOException ex) {
+            cb.onError(this, ex, STATUS_VALIDATION_FAILURE, ex.getMessage());
+            return;
+        }
+        Object signature = res.get("signature");
+
+        Callback<SubscriptionData> onData = new Callback<SubscriptionData>() {
             @Override
             public void onSuccess(SubscriptionData t) {
                 if (t.expirationTime > 0) {
@@ -80,15 +196,212 @@ public class GooglePlayValidator extends IAPValidator {
                     out.setPackageName(t.packageName);
                 }
                 setReceiptData(out, t);
+                cb.onSuccess(out);
             }
 
             @Override
             public void onError(Object o, Throwable thrwbl, int i, String string) {
-                Logger.getLogger(getClass().getSimpleName()).log(Level.INFO, "ERROR_GOOGLE_VALIDATION" + thrwbl.getLocalizedMessage());
+                cb.onError(o, thrwbl, i, string);
+            }
+
+        };
+
+        Object packageName = purchase == null ? null : purchase.get("packageName");
+        RSAKeyParameters licenseKey = packageName == null ? null : getLicenseKey(packageName.toString());
+        if (licenseKey != null) {
+            // the signature covers the purchase json exactly as Google produced it
+            if (!verifyPurchaseSignature(licenseKey, rawValue(orderData, "data"), signature == null ? null : signature.toString())) {
+                onData.onError(this, new IOException("The purchase signature doesn't verify"), STATUS_VALIDATION_FAILURE, "The purchase signature doesn't verify");
+                return;
+            }
+            if (trustSignature) {
+                SubscriptionData data = new SubscriptionData();
+                bind(data, purchase);
+                data.startTime = number(purchase.get("purchaseTime"));
+                onData.onSuccess(data);
+                return;
+            }
+        }
+
+        validatePurchase(purchase, onData, isSubs, wait, deadline);
+    }
+
+    /**
+     * The purchase is either embedded as an object or, as the Play billing library hands it out,
+     * as a json string
+     *
+     * @return the purchase or null if there is none
+     * @throws IOException if the purchase is neither
+     */
+    private static Map<String, Object> purchaseData(Object data) throws IOException {
+        if (data == null) {
+            return null;
+        }
+        if (data instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> purchase = (Map<String, Object>) data;
+            return purchase;
+        }
+        if (data instanceof String) {
+            return new JSONParser().parseJSON(new StringReader((String) data));
+        }
+        throw new IOException("Malformed purchase data");
+    }
+
+    /**
+     * Returns the Play licensing key of the package, keys not set on the validator are read from
+     * the {@code iap.googleLicenseKey.<packageName>} system property
+     *
+     * @return the key or null if the package has none
+     */
+    private RSAKeyParameters getLicenseKey(String packageName) {
+        RSAKeyParameters key = licenseKeys.get(packageName);
+        if (key == null) {
+            String encoded = System.getProperty("iap.googleLicenseKey." + packageName, null);
+            if (encoded != null) {
+                key = parseLicenseKey(encoded);
+                licenseKeys.put(packageName, key);
+            }
+        }
+        return key;
+    }
+
+    private static RSAKeyParameters parseLicenseKey(String encoded) {
+        try {
+            return (RSAKeyParameters) PublicKeyFactory.createKey(Base64.decode(encoded.trim().getBytes("UTF-8")));
+        } catch (IOException | RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid Play licensing key", ex);
+        }
+    }
+
+    private static boolean verifyPurchaseSignature(RSAKeyParameters key, String purchaseData, String signature) {
+        if (purchaseData == null || signature == null) {
+            return false;
+        }
+        try {
+            byte[] sig = Base64.decode(signature.getBytes("UTF-8"));
+            byte[] data = purchaseData.getBytes("UTF-8");
+            Signer signer = new RSADigestSigner(new SHA1Digest());
+            signer.init(false, key);
+            signer.update(data, 0, data.length);
+            return signer.verifySignature(sig);
+        } catch (UnsupportedEncodingException | RuntimeException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the top level value of the key as it appears in the json text. Strings are
+     * returned unescaped, objects and arrays verbatim.
+     */
+    private static String rawValue(String json, String key) {
+        int depth = 0;
+        int len = json.length();
+        for (int i = 0; i < len; i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                int end = endOfString(json, i);
+                if (depth == 1 && json.substring(i + 1, end).equals(key)) {
+                    int v = end + 1;
+                    while (v < len && (Character.isWhitespace(json.charAt(v)) || json.charAt(v) == ':')) {
+                        v++;
+                    }
+                    if (v >= len) {
+                        return null;
+                    }
+                    if (json.charAt(v) == '"') {
+                        Object value = Result.fromContent("{\"v\":" + json.substring(v, endOfString(json, v) + 1) + "}", "json").get("v");
+                        return value == null ? null : value.toString();
+                    }
+                    int d = 0;
+                    for (int j = v; j < len; j++) {
+                        char vc = json.charAt(j);
+                        if (vc == '"') {
+                            j = endOfString(json, j);
+                        } else if (vc == '{' || vc == '[') {
+                            d++;
+                        } else if (vc == '}' || vc == ']') {
+                            d--;
+                            if (d == 0) {
+                                return json.substring(v, j + 1);
+                            }
+                        }
+                    }
+                    return null;
+                }
+                i = end;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
             }
+        }
+        return null;
+    }
+
+    private static int endOfString(String json, int start) {
+        int len = json.length();
+        for (int i = start + 1; i < len; i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return len - 1;
+    }
+
+    private static long number(Object o) {
+        if (o == null) {
+            return 0;
+        }
+        if (o instanceof Number) {
+            return ((Number) o).longValue();
+        }
+        try {
+            return (long) Double.parseDouble(o.toString());
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
 
-        }, isSubs);
-        return new Receipt[]{out};
+    /**
+     * Sets the base64 encoded Play licensing public key of the package. Purchases of a package
+     * with a key are rejected locally unless their signature verifies.
+     *
+     * @param packageName the package name
+     * @param base64Key the key from the Play Console or null to remove it
+     */
+    public void setLicenseKey(String packageName, String base64Key) {
+        checkConfigurable();
+        if (base64Key == null) {
+            licenseKeys.remove(packageName);
+        } else {
+            licenseKeys.put(packageName, parseLicenseKey(base64Key));
+        }
+    }
+
+    /**
+     * Indicates whether purchases whose signature verifies against the licensing key of their
+     * package are accepted without querying the Play Developer API
+     *
+     * @return the trustSignature
+     */
+    public boolean isTrustSignature() {
+        return trustSignature;
+    }
+
+    /**
+     * Indicates whether purchases whose signature verifies against the licensing key of their
+     * package are accepted without querying the Play Developer API. The purchase is then described
+     * by the data the device sent, e.g. without expiry or cancellation details.
+     *
+     * @param trustSignature the trustSignature to set
+     */
+    public void setTrustSignature(boolean trustSignature) {
+        checkConfigurable();
+        this.trustSignature = trustSignature;
     }
 
     /**
@@ -128,119 +441,223 @@ public class GooglePlayValidator extends IAPValidator {
         Integer cancelSurveyReason;
     }
 
-    /**
-     * Structure to keep track of request state in HTTP requests.
-     */
-    private class RequestState {
-        int status;
-        String message;
-    }
-
-    /**
-     *
-     */
-    private class GoogleTokenMap {
-        String accessToken;
-        private Object clientID;
-        private Object clientSecret;
-        private Object refreshToken;
-    }
-
     /**
      * receipt = { data: 'stringified receipt data', signature: 'receipt signature' };
      * if receipt.data is an object, it silently stringifies it
      */
-    private void validatePurchase(String receiptData, String signature, Callback<SubscriptionData> cb, boolean isSubs) {
-        Result res = Result.fromContent(receiptData, "json");
-        SubscriptionData data = setParsedData(res);
-        if (res.get("packageName") == null) {
-            cb.onError(this, new RuntimeException("Receipt data is missing package name. : " + receiptData), 500, "Receipt data is missing package name: " + receiptData);
+    private void validatePurchase(Map purchase, Callback<SubscriptionData> cb, boolean isSubs, boolean wait, long deadline) {
+        if (purchase == null || purchase.get("packageName") == null) {
+            cb.onError(this, new RuntimeException("Receipt data is missing package name. : " + purchase), 500, "Receipt data is missing package name: " + purchase);
             return;
         }
-        checkSubscriptionStatus(data, cb, isSubs);
+        SubscriptionData data = new SubscriptionData();
+        bind(data, purchase);
+        checkSubscriptionStatus(data, cb, isSubs, wait, deadline);
     }
 
-    private void checkSubscriptionStatus(SubscriptionData data, final Callback<SubscriptionData> cb, boolean isSubs) {
-        String packageName = data.packageName;
-        String subscriptionID = data.productId;
-        String purchaseToken = data.purchaseToken;
+    private void checkSubscriptionStatus(final SubscriptionData data, final Callback<SubscriptionData> cb, final boolean isSubs, final boolean wait,
+                                         final long deadline) {
+        final String packageName = data.packageName;
+        final String subscriptionID = data.productId;
+        final String purchaseToken = data.purchaseToken;
 
         if (packageName == null) {
             cb.onError(this, new RuntimeException("No package name provided"), 500, "No package name provided");
             return;
         }
 
-        final String url = String.format("https://www.googleapis.com/androidpublisher/v3/applications/%s/purchases/%s/%s/tokens/%s",
-                packageName, isSubs ? "subscriptions" : "products", subscriptionID, purchaseToken);
-        final RequestState state = new RequestState();
-
-        if (googleTokenMap.accessToken == null) {
-            // we don't have an access token yet.. just skip to it
-            state.status = STATUS_VALIDATION_FAILURE;
-            state.message = "No access token yet";
-        } else {
-            getSubscriptionInfo(url, new Callback<Result>() {
-                @Override
-                public void onSuccess(Result body) {
-                    setParsedData(body, data, state, packageName, subscriptionID, purchaseToken);
-                }
-
-                @Override
-                public void onError(Object o, Throwable thrwbl, int i, String string) {
-                    state.status = STATUS_VALIDATION_FAILURE;
-                    state.message = string;
-                }
-
-            });
+        final String url = getPurchaseUrl(packageName, subscriptionID, purchaseToken, isSubs);
+        final boolean cache = subscriptionCacheMaxTtl > 0 || productCacheTtl > 0;
+        if (cache) {
+            SubscriptionData cached = purchaseCache.get(url);
+            if (cached != null) {
+                cb.onSuccess(cached);
+                return;
+            }
         }
 
-        if (state.status == STATUS_VALIDATION_FAILURE) {
-            // Try to refresh the google token
-            refreshGoogleTokens(new Callback<Result>() {
-                @Override
-                public void onSuccess(Result parsedBody) {
-                    if (parsedBody.get("error") != null) {
-                        state.status = STATUS_VALIDATION_FAILURE;
-                        state.message = parsedBody.getAsString("error");
-                    } else {
-                        googleTokenMap.accessToken = parsedBody.getAsString("access_token");
-                        state.status = STATUS_VALIDATION_SUCCESS;
-                    }
-                }
-
-                @Override
-                public void onError(Object o, Throwable thrwbl, int i, String string) {
-                    state.status = STATUS_VALIDATION_FAILURE;
-                    state.message = string;
-                }
-
-            });
-            if (state.status == STATUS_VALIDATION_SUCCESS) {
-                getSubscriptionInfo(url, new Callback<Result>() {
+        // identical lookups in flight share a single request
+        inFlight.execute(url, cb, wait, deadline, dispatcher -> {
+            Callback<SubscriptionData> target = dispatcher;
+            if (cache) {
+                target = new Callback<SubscriptionData>() {
                     @Override
-                    public void onSuccess(Result parsedBody) {
-                        if (parsedBody.get("error") != null) {
-                            state.status = STATUS_VALIDATION_FAILURE;
-                            state.message = parsedBody.getAsString("error");
-                        } else {
-                            setParsedData(parsedBody, data, state, packageName, subscriptionID, purchaseToken);
-                        }
+                    public void onSuccess(SubscriptionData value) {
+                        cachePurchase(url, value, isSubs);
+                        dispatcher.onSuccess(value);
                     }
 
                     @Override
-                    public void onError(Object o, Throwable thrwbl, int i, String string) {
-                        state.status = STATUS_VALIDATION_FAILURE;
-                        state.message = string;
+                    public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+                        dispatcher.onError(sender, err, errorCode, errorMessage);
                     }
-                });
+                };
             }
-        }
+            requestWithToken(tokenManager.getToken(deadline), url, data, target, true, wait, deadline);
+        });
+    }
+
+    private static String getPurchaseUrl(String packageName, String productId, String purchaseToken, boolean isSubs) {
+        return String.format("https://www.googleapis.com/androidpublisher/v3/applications/%s/purchases/%s/%s/tokens/%s",
+                packageName, isSubs ? "subscriptions" : "products", productId, purchaseToken);
+    }
 
-        if (state.status == STATUS_VALIDATION_SUCCESS) {
-            cb.onSuccess(data);
+    private void cachePurchase(String url, SubscriptionData data, boolean isSubs) {
+        long ttl;
+        if (isSubs) {
+            ttl = Math.min(subscriptionCacheMaxTtl, data.expiryTimeMillis - System.currentTimeMillis());
         } else {
-            cb.onError(cb, new IOException(state.message), state.status, state.message);
+            ttl = productCacheTtl;
         }
+        purchaseCache.put(url, data, ttl, 1);
+    }
+
+    /**
+     * Drops the cached Play Developer API answer for a purchase e.g. when a real time developer
+     * notification reports that the purchase changed.
+     *
+     * @param packageName the package name
+     * @param productId the product or subscription id
+     * @param purchaseToken the purchase token
+     * @param isSubs true for a subscription
+     */
+    public void invalidateCachedPurchase(String packageName, String productId, String purchaseToken, boolean isSubs) {
+        purchaseCache.invalidate(getPurchaseUrl(packageName, productId, purchaseToken, isSubs));
+    }
+
+    /**
+     * Drops all the cached Play Developer API answers
+     */
+    public void clearPurchaseCache() {
+        purchaseCache.clear();
+    }
+
+    /**
+     * The maximum time in milliseconds a subscription lookup is reused, entries never outlive
+     * the subscription expiry. 0 (the default) disables caching of subscriptions.
+     *
+     * @return the subscriptionCacheMaxTtl
+     */
+    public long getSubscriptionCacheMaxTtl() {
+        return subscriptionCacheMaxTtl;
+    }
+
+    /**
+     * The maximum time in milliseconds a subscription lookup is reused, entries never outlive
+     * the subscription expiry. 0 (the default) disables caching of subscriptions.
+     *
+     * @param subscriptionCacheMaxTtl the subscriptionCacheMaxTtl to set
+     */
+    public void setSubscriptionCacheMaxTtl(long subscriptionCacheMaxTtl) {
+        checkConfigurable();
+        this.subscriptionCacheMaxTtl = subscriptionCacheMaxTtl;
+    }
+
+    /**
+     * The time in milliseconds a one time product lookup is reused, 0 (the default) disables
+     * caching of products.
+     *
+     * @return the productCacheTtl
+     */
+    public long getProductCacheTtl() {
+        return productCacheTtl;
+    }
+
+    /**
+     * The time in milliseconds a one time product lookup is reused, 0 (the default) disables
+     * caching of products.
+     *
+     * @param productCacheTtl the productCacheTtl to set
+     */
+    public void setProductCacheTtl(long productCacheTtl) {
+        checkConfigurable();
+        this.productCacheTtl = productCacheTtl;
+    }
+
+    /**
+     * @param maxEntries the maximum number of purchases kept in the cache
+     */
+    public void setPurchaseCacheMaxEntries(int maxEntries) {
+        checkConfigurable();
+        purchaseCache.setMaxEntries(maxEntries);
+    }
+
+    /**
+     * Queries the subscription once the access token is available. When Google rejects the token
+     * and {@code retryOnReject} is set a new token is fetched and the query repeated once. The
+     * token future fails once the deadline of the caller passed even if it's shared with others.
+     */
+    private void requestWithToken(CompletableFuture<String> token, final String url, final SubscriptionData data,
+                                  final Callback<SubscriptionData> cb, final boolean retryOnReject, final boolean wait,
+                                  final long deadline) {
+        if (!wait) {
+            token.whenComplete((accessToken, err) -> {
+                if (err != null) {
+                    tokenError(cb, err instanceof CompletionException && err.getCause() != null ? err.getCause() : err);
+                } else {
+                    fetchSubscription(url, accessToken, data, cb, retryOnReject, wait, deadline);
+                }
+            });
+            return;
+        }
+        String accessToken;
+        try {
+            if (deadline > 0) {
+                accessToken = token.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } else {
+                accessToken = token.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            tokenError(cb, ex);
+            return;
+        } catch (ExecutionException ex) {
+            tokenError(cb, ex.getCause());
+            return;
+        } catch (TimeoutException ex) {
+            tokenError(cb, new ConnectionRequest.DeadlineExceededException());
+            return;
+        }
+        fetchSubscription(url, accessToken, data, cb, retryOnReject, wait, deadline);
+    }
+
+    private void tokenError(Callback<SubscriptionData> cb, Throwable err) {
+        String message = err.getMessage();
+        cb.onError(cb, err instanceof IOException ? err : new IOException(message, err), STATUS_VALIDATION_FAILURE, message);
+    }
+
+    private void fetchSubscription(final String url, final String accessToken, final SubscriptionData data,
+                                   final Callback<SubscriptionData> cb, final boolean retryOnReject, final boolean wait,
+                                   final long deadline) {
+        final String packageName = data.packageName;
+        final String subscriptionID = data.productId;
+        final String purchaseToken = data.purchaseToken;
+        getSubscriptionInfo(url, packageName, accessToken, new Callback<Map<String, Object>>() {
+            @Override
+            public void onSuccess(Map<String, Object> parsedBody) {
+                if (parsedBody.get("error") != null) {
+                    String message = String.valueOf(parsedBody.get("error"));
+                    cb.onError(cb, new IOException(message), STATUS_VALIDATION_FAILURE, message);
+                } else {
+                    bind(data, parsedBody);
+                    data.packageName = packageName;
+                    data.productId = subscriptionID;
+                    data.purchaseToken = purchaseToken;
+                    cb.onSuccess(data);
+                }
+            }
+
+            @Override
+            public void onError(Object o, Throwable thrwbl, int i, String string) {
+                if (retryOnReject && i == 401) {
+                    // the token was revoked before its expiry
+                    tokenManager.invalidate(accessToken);
+                    requestWithToken(tokenManager.refresh(deadline), url, data, cb, false, wait, deadline);
+                    return;
+                }
+                cb.onError(cb, new IOException(string), i, string);
+            }
+        }, wait, deadline);
     }
 
     /**
@@ -282,97 +699,189 @@ public class GooglePlayValidator extends IAPValidator {
      */
     private String createJWT(String payload) {
         try {
-            Map header = new HashMap();
-            header.put("alg", "RS256");
-            header.put("typ", "JWT");
+            SigningKey key = getSigningKey();
+            long now = System.currentTimeMillis() / 1000l;
 
-            Map claims = new HashMap();
-            claims.put("iss", getGoogleClientId());
-            claims.put("scope", "https://www.googleapis.com/auth/androidpublisher");
-            claims.put("aud", "https://www.googleapis.com/oauth2/v4/token");
-            claims.put("exp", String.valueOf(System.currentTimeMillis() / 1000l + 1800));
-            claims.put("iat", String.valueOf(System.currentTimeMillis() / 1000l));
+            StringBuilder claims = new StringBuilder(256);
+            claims.append("{\"iss\":\"");
+            appendJSONString(claims, getGoogleClientId());
+            claims.append("\",\"scope\":\"https://www.googleapis.com/auth/androidpublisher\"")
+                    .append(",\"aud\":\"https://www.googleapis.com/oauth2/v4/token\"")
+                    .append(",\"exp\":\"").append(now + 1800)
+                    .append("\",\"iat\":\"").append(now).append("\"}");
 
-            String headerEnc = Base64.encodeNoNewline(Result.fromContent(header).toString().getBytes("UTF-8")).replace('+', '-').replace('/', '_').replace("=", " ");
-            String claimsEnc = Base64.encodeNoNewline(Result.fromContent(claims).toString().getBytes("UTF-8")).replace('+', '-').replace('/', '_').replace("=", " ");
-            String sigContent = headerEnc + "." + claimsEnc;
+            StringBuilder jwt = new StringBuilder(512);
+            jwt.append(JWT_HEADER_ENC).append('.').append(encodeJWTSegment(claims.toString().getBytes("UTF-8")));
+            byte[] sigBytes = jwt.toString().getBytes("UTF-8");
 
-            Digest digest = new SHA256Digest();
-            Signer signer = new RSADigestSigner(digest);
+            Signer signer = new RSADigestSigner(new SHA256Digest());
+            signer.init(true, key.privateKey);
+            signer.update(sigBytes, 0, sigBytes.length);
+            byte[] sig = signer.generateSignature();
 
-            String pkey = getGooglePrivateKey();
-            RSAPrivateKey rpkey = getRSAPrivateKey(pkey);
-            signer.init(true, new RSAKeyParameters(true, rpkey.getModulus(), rpkey.getPrivateExponent()));
+            return jwt.append('.').append(encodeJWTSegment(sig)).toString();
+        } catch (UnsupportedEncodingException | CryptoException | RuntimeException ex) {
+            throw new RuntimeException(ex);
+        }
 
-            byte[] sigBytes = sigContent.getBytes("UTF-8");
-            signer.update(sigBytes, 0, sigBytes.length);
+    }
 
-            byte[] sig = signer.generateSignature();
+    private static String encodeJWTSegment(byte[] b) {
+        return Base64.encodeNoNewline(b).replace('+', '-').replace('/', '_').replace("=", " ");
+    }
 
-            RSAKeyParameters kp = new RSAKeyParameters(false, rpkey.getModulus(), rpkey.getPublicExponent());
-            signer.init(false, kp);
-            signer.update(sigBytes, 0, sigBytes.length);
-            boolean res = signer.verifySignature(sig);
-            if (!res) {
-                throw new RuntimeException("Failed to verify signature after creating it");
+    private static void appendJSONString(StringBuilder sb, String s) {
+        if (s == null) {
+            return;
+        }
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\');
             }
+            sb.append(c);
+        }
+    }
 
-            String jwt = headerEnc + "." + claimsEnc + "." + Base64.encodeNoNewline(sig).replace('+', '-').replace('/', '_').replace("=", " ");
-            return jwt;
-        } catch (UnsupportedEncodingException | CryptoException | RuntimeException ex) {
-            throw new RuntimeException(ex);
+    /**
+     * Returns the signing key for the configured private key, parsing it only when the key changed
+     */
+    private SigningKey getSigningKey() throws CryptoException {
+        String pkey = getGooglePrivateKey();
+        SigningKey key = signingKey;
+        if (key != null && key.pem.equals(pkey)) {
+            return key;
         }
+        RSAPrivateKey rpkey = getRSAPrivateKey(pkey);
+        key = new SigningKey(pkey, rpkey);
+        if (verifySigningKey) {
+            key.verify();
+        }
+        signingKey = key;
+        return key;
+    }
 
+    /**
+     * A parsed service account key. The CRT parameters make each signature several times cheaper
+     * than signing with the private exponent alone.
+     */
+    private static class SigningKey {
+        private final String pem;
+        private final RSAKeyParameters privateKey;
+        private final RSAKeyParameters publicKey;
+
+        SigningKey(String pem, RSAPrivateKey rpkey) {
+            this.pem = pem;
+            this.privateKey = new RSAPrivateCrtKeyParameters(rpkey.getModulus(), rpkey.getPublicExponent(),
+                    rpkey.getPrivateExponent(), rpkey.getPrime1(), rpkey.getPrime2(), rpkey.getExponent1(),
+                    rpkey.getExponent2(), rpkey.getCoefficient());
+            this.publicKey = new RSAKeyParameters(false, rpkey.getModulus(), rpkey.getPublicExponent());
+        }
+
+        /**
+         * Signs a sample and verifies it with the public key to catch a corrupt key on load
+         */
+        void verify() throws CryptoException {
+            byte[] sample = JWT_HEADER_ENC.getBytes();
+            Signer signer = new RSADigestSigner(new SHA256Digest());
+            signer.init(true, privateKey);
+            signer.update(sample, 0, sample.length);
+            byte[] sig = signer.generateSignature();
+            signer.init(false, publicKey);
+            signer.update(sample, 0, sample.length);
+            if (!signer.verifySignature(sig)) {
+                throw new RuntimeException("Failed to verify signature created with the service account key");
+            }
+        }
+    }
+
+    /**
+     * Indicates whether a newly configured private key is checked by signing and verifying a sample
+     * before its first use
+     *
+     * @return the verifySigningKey
+     */
+    public boolean isVerifySigningKey() {
+        return verifySigningKey;
     }
 
-    void getSubscriptionInfo(String url, final Callback<Result> cb) {
-        if (googleTokenMap.accessToken == null) {
+    /**
+     * Indicates whether a newly configured private key is checked by signing and verifying a sample
+     * before its first use
+     *
+     * @param verifySigningKey the verifySigningKey to set
+     */
+    public void setVerifySigningKey(boolean verifySigningKey) {
+        checkConfigurable();
+        this.verifySigningKey = verifySigningKey;
+    }
+
+    void getSubscriptionInfo(String url, String packageName, String accessToken, final Callback<Map<String, Object>> cb, boolean wait,
+                             long deadline) {
+        if (accessToken == null) {
             cb.onError(this, new RuntimeException("Failed to get subscription info because no access token was found."), 500, "Failed to get subscription info because no access token was found.");
             return;
         }
         final ConnectionRequest req = new ConnectionRequest();
         req.setCookieJar(new Hashtable());
         req.setHttpMethod("GET");
-        req.addRequestHeader("Authorization", "Bearer " + googleTokenMap.accessToken);
+        req.addRequestHeader("Authorization", "Bearer " + accessToken);
         req.addRequestHeader("Accept", "application/json");
+        req.setPriority(getRequestPriority());
+        req.setRetryPolicy(getRetryPolicy());
+        req.setEndpointGuard(getEndpointGuard(url));
+        req.setRateLimiter(rateLimiter, getAccountRateKey(), getPackageRateKey(packageName));
+        req.setDeadline(deadline);
         req.setFailSilently(true);
         req.setReadResponseForErrors(true);
+        final boolean[] handled = new boolean[1];
         req.addResponseListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent t) {
+                handled[0] = true;
                 try {
                     if (req.getResponseCode() >= 200 && req.getResponseCode() < 300) {
-                        Result res = Result.fromContent(new String(req.getResponseData(), "UTF-8"), "json");
-                        cb.onSuccess(res);
+                        cb.onSuccess(new JSONParser().parseJSON(new InputStreamReader(new ByteArrayInputStream(req.getResponseData()), "UTF-8")));
                     } else {
                         cb.onError(this, new RuntimeException("Failed to get subscription info: response code " + req.getResponseCode()), req.getResponseCode(), "Failed to get subscription info: response code " + req.getResponseCode());
                     }
-                } catch (UnsupportedEncodingException | IllegalArgumentException ex) {
-                    try {
-                    } catch (Exception ex2) {
-                    }
+                } catch (IOException | IllegalArgumentException ex) {
                     cb.onError(this, ex, 500, ex.getMessage());
                 }
             }
         });
+        req.addCompletionListener(new FailureListener(req, handled, cb));
         req.setUrl(url);
-        req.addToQueueAndWait();
+        queue(req, wait);
 
     }
 
+    /**
+     * Fetches a new access token in the background, the token manager shares the request between
+     * callers so it isn't bound to the deadline of any of them
+     */
     private void refreshGoogleTokens(final Callback<Result> cb) {
         final ConnectionRequest req = new ConnectionRequest();
         req.setCookieJar(new Hashtable());
         req.setHttpMethod("POST");
         req.setUrl("https://www.googleapis.com/oauth2/v4/token");
+        // every validation waits for the token
+        req.setPriority(ConnectionRequest.PRIORITY_HIGH);
+        // a second token request only issues another token
+        req.setIdempotent(true);
+        req.setRetryPolicy(getRetryPolicy());
+        req.setRateLimiter(rateLimiter, getAccountRateKey());
         req.setWriteRequest(true);
         req.setFailSilently(true);
         req.setReadResponseForErrors(true);
         req.addArgument("grant_type", "urn:ietf:params:oauth:grant-type:jwt-bearer");
         req.addArgument("assertion", createJWT(""));
+        final boolean[] handled = new boolean[1];
         req.addResponseListener(new ActionListener<NetworkEvent>() {
             @Override
             public void actionPerformed(NetworkEvent evt) {
+                handled[0] = true;
                 try {
                     if (req.getResponseCode() >= 200 && req.getResponseCode() < 300) {
                         cb.onSuccess(Result.fromContent(new String(req.getResponseData(), "UTF-8"), "json"));
@@ -384,95 +893,147 @@ public class GooglePlayValidator extends IAPValidator {
                 }
             }
         });
-        req.addToQueueAndWait();
+        req.addCompletionListener(new FailureListener(req, handled, cb));
+        queue(req, false);
     }
 
     /**
-     * String packageName;
-     * String productId;
-     * String purchaseToken;
-     * <p>
-     * Integer acknowledgementState;
-     * String priceAmountMicros;
-     * String orderId;
-     * String kind;
-     * Integer cancelReason;
-     * <p>
-     * String countryCode;
-     * Integer paymentState;
-     * Integer purchaseType;
-     * <p>
-     * String priceCurrencyCode;
-     * String startTimeMillis;
-     * String expiryTimeMillis;
-     * String developerPayload;
-     * <p>
-     * long userCancellationTimeMillis;
-     * <p>
-     * boolean autoRenewing;
-     * long expirationTime;
-     * long startTime;
-     * <p>
-     * CancelSurveyResult cancelSurveyResult;
+     * Fetches the access token ahead of the first validation so it doesn't pay for the OAuth
+     * round trip
+     */
+    @Override
+    public CompletableFuture<Void> warmUp() {
+        if (getGoogleClientId() == null || getGooglePrivateKey() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return tokenManager.getToken(0).thenApply(t -> null);
+    }
+
+    /**
+     * The limiter pacing the Play Developer API calls of all validators. Each call takes a token
+     * from the bucket of its service account, keyed {@code account:<client id>}, and of its
+     * application, keyed {@code package:<package name>}. Set the rate of a bucket to match its
+     * quota, the levels show how close the buckets run to it.
      *
-     * @param result
-     * @return
+     * @return the rate limiter
      */
-    private SubscriptionData setParsedData(Result result) {
-        SubscriptionData data = new SubscriptionData();
-        data.packageName = result.getAsString("packageName");
-        data.productId = result.getAsString("productId");
-        data.purchaseToken = result.getAsString("purchaseToken");
-
-        data.acknowledgementState = result.getAsInteger("acknowledgementState");
-        data.priceAmountMicros = result.getAsLong("priceAmountMicros");
-        data.orderId = result.getAsString("orderId");
-        data.kind = result.getAsString("kind");
-        data.cancelReason = result.getAsInteger("cancelReason");
-
-        data.countryCode = result.getAsString("countryCode");
-        data.paymentState = result.getAsInteger("paymentState");
-        data.purchaseType = result.getAsInteger("purchaseType");
-
-        data.priceCurrencyCode = result.getAsString("priceCurrencyCode");
-        data.startTimeMillis = result.getAsLong("startTimeMillis");
-        data.expiryTimeMillis = result.getAsLong("expiryTimeMillis");
-        data.developerPayload = result.getAsString("developerPayload");
-        data.userCancellationTimeMillis = result.getAsLong("userCancellationTimeMillis");
-
-        data.autoRenewing = result.getAsBoolean("autoRenewing");
-        data.expirationTime = result.getAsLong("expiryTimeMillis");
-        data.startTime = result.getAsLong("startTimeMillis");
-        return data;
-    }
-
-    private void setParsedData(Result parsedBody, SubscriptionData data, RequestState state,
-                               String packageName, String subscriptionID, String purchaseToken) {
-        data.packageName = packageName;
-        data.productId = subscriptionID;
-        data.purchaseToken = purchaseToken;
-
-        data.acknowledgementState = parsedBody.getAsInteger("acknowledgementState");
-        data.priceAmountMicros = parsedBody.getAsLong("priceAmountMicros");
-        data.orderId = parsedBody.getAsString("orderId");
-        data.kind = parsedBody.getAsString("kind");
-        data.cancelReason = parsedBody.getAsInteger("cancelReason");
-
-        data.countryCode = parsedBody.getAsString("countryCode");
-        data.paymentState = parsedBody.getAsInteger("paymentState");
-        data.purchaseType = parsedBody.getAsInteger("purchaseType");
-
-        data.priceCurrencyCode = parsedBody.getAsString("priceCurrencyCode");
-        data.startTimeMillis = parsedBody.getAsLong("startTimeMillis");
-        data.expiryTimeMillis = parsedBody.getAsLong("expiryTimeMillis");
-        data.developerPayload = parsedBody.getAsString("developerPayload");
-        data.userCancellationTimeMillis = parsedBody.getAsLong("userCancellationTimeMillis");
-
-        data.autoRenewing = parsedBody.getAsBoolean("autoRenewing");
-        data.expirationTime = parsedBody.getAsLong("expiryTimeMillis");
-        data.startTime = parsedBody.getAsLong("startTimeMillis");
-
-        state.status = STATUS_VALIDATION_SUCCESS;
+    public static RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    private String getAccountRateKey() {
+        return "account:" + getGoogleClientId();
+    }
+
+    private static String getPackageRateKey(String packageName) {
+        return "package:" + packageName;
+    }
+
+    private static void queue(ConnectionRequest req, boolean wait) {
+        if (wait) {
+            req.addToQueueAndWait();
+        } else {
+            req.addToQueue();
+        }
+    }
+
+    /**
+     * Reports requests that completed without a response (e.g. connection failures) to the callback.
+     */
+    private class FailureListener implements ActionListener<NetworkEvent> {
+        private final ConnectionRequest req;
+        private final boolean[] handled;
+        private final Callback<?> cb;
+
+        FailureListener(ConnectionRequest req, boolean[] handled, Callback<?> cb) {
+            this.req = req;
+            this.handled = handled;
+            this.cb = cb;
+        }
+
+        @Override
+        public void actionPerformed(NetworkEvent evt) {
+            if (!handled[0]) {
+                Exception ex = req.getFailureException();
+                if (ex == null) {
+                    ex = new IOException("Failed to connect");
+                }
+                cb.onError(GooglePlayValidator.this, ex, req.getFailureErrorCode(), ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Binds a purchase or a Play Developer API answer into the subscription data in a single
+     * pass over the parsed map. Missing numbers are 0 and a missing autoRenewing is false.
+     */
+    private static void bind(SubscriptionData data, Map<?, ?> m) {
+        data.acknowledgementState = 0;
+        data.cancelReason = 0;
+        data.paymentState = 0;
+        data.purchaseType = 0;
+        for (Map.Entry<?, ?> e : m.entrySet()) {
+            Object v = e.getValue();
+            switch (String.valueOf(e.getKey())) {
+                case "packageName":
+                    data.packageName = text(v);
+                    break;
+                case "productId":
+                    data.productId = text(v);
+                    break;
+                case "purchaseToken":
+                    data.purchaseToken = text(v);
+                    break;
+                case "acknowledgementState":
+                    data.acknowledgementState = (int) number(v);
+                    break;
+                case "priceAmountMicros":
+                    data.priceAmountMicros = number(v);
+                    break;
+                case "orderId":
+                    data.orderId = text(v);
+                    break;
+                case "kind":
+                    data.kind = text(v);
+                    break;
+                case "cancelReason":
+                    data.cancelReason = (int) number(v);
+                    break;
+                case "countryCode":
+                    data.countryCode = text(v);
+                    break;
+                case "paymentState":
+                    data.paymentState = (int) number(v);
+                    break;
+                case "purchaseType":
+                    data.purchaseType = (int) number(v);
+                    break;
+                case "priceCurrencyCode":
+                    data.priceCurrencyCode = text(v);
+                    break;
+                case "startTimeMillis":
+                    data.startTimeMillis = number(v);
+                    data.startTime = data.startTimeMillis;
+                    break;
+                case "expiryTimeMillis":
+                    data.expiryTimeMillis = number(v);
+                    data.expirationTime = data.expiryTimeMillis;
+                    break;
+                case "developerPayload":
+                    data.developerPayload = text(v);
+                    break;
+                case "userCancellationTimeMillis":
+                    data.userCancellationTimeMillis = number(v);
+                    break;
+                case "autoRenewing":
+                    data.autoRenewing = v != null && "true".equalsIgnoreCase(v.toString());
+                    break;
+            }
+        }
+    }
+
+    private static String text(Object o) {
+        return o == null ? null : o.toString();
     }
 
     /**
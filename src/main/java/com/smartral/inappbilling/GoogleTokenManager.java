@@ -0,0 +1,236 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.io.ConnectionRequest;
+import com.smartral.inappbilling.utils.processing.Result;
+import com.smartral.inappbilling.utils.util.Callback;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the Google OAuth access token of a validator. The token expiry is tracked from
+ * {@code expires_in} so it is refreshed in the background before it runs out, and concurrent
+ * callers that need a new token share a single refresh request. The shared request isn't bound
+ * to the deadline of any caller, each caller stops waiting for it at its own deadline.
+ */
+class GoogleTokenManager {
+
+    /**
+     * Performs the actual token request in the background
+     */
+    interface TokenFetcher {
+        void fetch(Callback<Result> cb);
+    }
+
+    /**
+     * Lifetime assumed when the token response doesn't include expires_in
+     */
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+    /**
+     * A token is treated as expired this long before its actual expiry to cover clock skew and
+     * the time the request spends in flight
+     */
+    private static final long EXPIRY_SKEW_MILLIS = 30000;
+
+    /**
+     * Upper bound of how long before expiry the background refresh runs
+     */
+    private static final long MAX_REFRESH_AHEAD_MILLIS = 300000;
+
+    private static ScheduledExecutorService scheduler;
+
+    private final TokenFetcher fetcher;
+    private volatile Token token;
+    private volatile boolean used;
+    private CompletableFuture<String> inFlight;
+
+    GoogleTokenManager(TokenFetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    private static class Token {
+        final String accessToken;
+        final long expiresAt;
+
+        Token(String accessToken, long expiresAt) {
+            this.accessToken = accessToken;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "GoogleTokenRefresh");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns the current token if it is still valid
+     *
+     * @return the access token or null
+     */
+    String getValidToken() {
+        Token t = token;
+        if (t != null && System.currentTimeMillis() < t.expiresAt - EXPIRY_SKEW_MILLIS) {
+            used = true;
+            return t.accessToken;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a valid access token, refreshing it first if needed
+     *
+     * @param deadline the time in milliseconds since the epoch the caller waits for a refresh
+     *                 until or 0
+     * @return a future with the access token
+     */
+    CompletableFuture<String> getToken(long deadline) {
+        String t = getValidToken();
+        if (t != null) {
+            return CompletableFuture.completedFuture(t);
+        }
+        return refresh(deadline);
+    }
+
+    /**
+     * Drops the given token e.g. after Google rejected it, later calls will fetch a new one.
+     *
+     * @param rejected the token that was rejected
+     */
+    void invalidate(String rejected) {
+        Token t = token;
+        if (t != null && t.accessToken.equals(rejected)) {
+            token = null;
+        }
+    }
+
+    /**
+     * Requests a new token unless a request is already in flight in which case that request is
+     * shared.
+     *
+     * @param deadline the time in milliseconds since the epoch the caller waits for the request
+     *                 until or 0, the request itself keeps running for the other callers
+     * @return a future with the new access token that fails with a
+     * {@link ConnectionRequest.DeadlineExceededException} once the deadline passed
+     */
+    CompletableFuture<String> refresh(long deadline) {
+        final CompletableFuture<String> f;
+        synchronized (this) {
+            if (inFlight != null) {
+                return until(inFlight, deadline);
+            }
+            f = new CompletableFuture<>();
+            inFlight = f;
+        }
+        try {
+            fetcher.fetch(new Callback<Result>() {
+                @Override
+                public void onSuccess(Result parsedBody) {
+                    if (parsedBody.get("error") != null) {
+                        complete(f, null, new IOException(parsedBody.getAsString("error")));
+                        return;
+                    }
+                    String accessToken = parsedBody.getAsString("access_token");
+                    if (accessToken == null) {
+                        complete(f, null, new IOException("Token response has no access_token"));
+                        return;
+                    }
+                    long expiresIn = DEFAULT_EXPIRES_IN_SECONDS;
+                    if (parsedBody.get("expires_in") != null) {
+                        expiresIn = parsedBody.getAsLong("expires_in");
+                    }
+                    long lifetime = expiresIn * 1000;
+                    Token t = new Token(accessToken, System.currentTimeMillis() + lifetime);
+                    token = t;
+                    used = false;
+                    scheduleRefresh(t, lifetime);
+                    complete(f, accessToken, null);
+                }
+
+                @Override
+                public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+                    complete(f, null, err != null ? err : new IOException(errorMessage));
+                }
+            });
+        } catch (RuntimeException ex) {
+            complete(f, null, ex);
+        }
+        return until(f, deadline);
+    }
+
+    /**
+     * Returns a future following the shared one that fails once the deadline passed
+     */
+    private static CompletableFuture<String> until(CompletableFuture<String> shared, long deadline) {
+        if (deadline <= 0 || shared.isDone()) {
+            return shared;
+        }
+        final CompletableFuture<String> out = new CompletableFuture<>();
+        final ScheduledFuture<?> timer = getScheduler().schedule(() -> {
+            out.completeExceptionally(new ConnectionRequest.DeadlineExceededException());
+        }, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        shared.whenComplete((accessToken, err) -> {
+            timer.cancel(false);
+            if (err != null) {
+                out.completeExceptionally(err);
+            } else {
+                out.complete(accessToken);
+            }
+        });
+        return out;
+    }
+
+    private void complete(CompletableFuture<String> f, String accessToken, Throwable err) {
+        synchronized (this) {
+            if (inFlight == f) {
+                inFlight = null;
+            }
+        }
+        if (err != null) {
+            f.completeExceptionally(err);
+        } else {
+            f.complete(accessToken);
+        }
+    }
+
+    /**
+     * Schedules a refresh ahead of the expiry of {@code t}. The refresh is skipped if the token was
+     * replaced in the meantime or wasn't used at all so idle validators stop refreshing.
+     */
+    private void scheduleRefresh(final Token t, long lifetime) {
+        long ahead = Math.min(MAX_REFRESH_AHEAD_MILLIS, lifetime / 4);
+        long delay = lifetime - ahead;
+        if (delay <= 0) {
+            return;
+        }
+        getScheduler().schedule(() -> {
+            if (token != t || !used) {
+                return;
+            }
+            refresh(0).whenComplete((accessToken, err) -> {
+                if (err != null) {
+                    // the token will be fetched on demand once it expires
+                    Logger.getLogger(GoogleTokenManager.class.getSimpleName()).log(Level.WARNING, "Background token refresh failed: " + err);
+                }
+            });
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
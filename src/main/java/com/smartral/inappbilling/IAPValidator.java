@@ -5,19 +5,46 @@
  */
 package com.smartral.inappbilling;
 
+import com.smartral.inappbilling.utils.io.ConnectionRequest;
+import com.smartral.inappbilling.utils.io.EndpointGuard;
+import com.smartral.inappbilling.utils.io.RetryPolicy;
 import com.smartral.inappbilling.utils.payment.Receipt;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
+ * Validators hold no per-call state so once configured a single instance can be shared between
+ * threads, see {@link #getSharedValidatorForPlatform}. Shared instances are frozen, their
+ * configuration setters throw an {@link IllegalStateException}.
  *
  * @author shannah
  */
 public abstract class IAPValidator {
 
+    private static final ConcurrentMap<ValidatorKey, IAPValidator> sharedValidators = new ConcurrentHashMap<>();
+
     private String appleSecret;
     private String googleClientId;
     private String googlePrivateKey;
+    private int maxConcurrentValidations = 10;
+    private byte requestPriority = ConnectionRequest.PRIORITY_NORMAL;
+    private RetryPolicy retryPolicy = new RetryPolicy();
+    private boolean guardEndpoints = true;
+    private long validationTimeout;
+    private volatile boolean frozen;
 
     public static IAPValidator getValidatorForPlatform(String storeCode, boolean isSandBox, boolean isExcludeOldReceipts) {
         if (null == storeCode) {
@@ -33,16 +60,476 @@ public abstract class IAPValidator {
         }
     }
 
+    /**
+     * Returns a configured validator that is shared by all callers asking for the same store,
+     * environment and credentials. Unlike {@link #getValidatorForPlatform} the instance is reused
+     * so state such as the Google access token survives between validations.
+     *
+     * @param storeCode the store code e.g. {@link Receipt#STORE_CODE_ITUNES}
+     * @param isSandBox true to validate against the sandbox
+     * @param isExcludeOldReceipts true to exclude old transactions from apple responses
+     * @param appleSecret the apple shared secret or null
+     * @param googleClientId the google service account client id or null
+     * @param googlePrivateKey the google service account private key or null
+     * @return the shared validator or null if the store isn't supported
+     */
+    public static IAPValidator getSharedValidatorForPlatform(String storeCode, boolean isSandBox, boolean isExcludeOldReceipts,
+                                                             String appleSecret, String googleClientId, String googlePrivateKey) {
+        return getSharedValidatorForPlatform(storeCode, isSandBox, isExcludeOldReceipts, appleSecret, googleClientId, googlePrivateKey, null);
+    }
+
+    /**
+     * Returns a configured validator that is shared by all callers asking for the same store,
+     * environment and credentials. The configurer is invoked on a new instance before it's
+     * shared, afterwards the instance is frozen. When the validator for the key already exists
+     * it's returned as is and the configurer isn't invoked.
+     *
+     * @param storeCode the store code e.g. {@link Receipt#STORE_CODE_ITUNES}
+     * @param isSandBox true to validate against the sandbox
+     * @param isExcludeOldReceipts true to exclude old transactions from apple responses
+     * @param appleSecret the apple shared secret or null
+     * @param googleClientId the google service account client id or null
+     * @param googlePrivateKey the google service account private key or null
+     * @param configurer sets up the rest of the configuration of a new instance or null
+     * @return the shared validator or null if the store isn't supported
+     */
+    public static IAPValidator getSharedValidatorForPlatform(String storeCode, boolean isSandBox, boolean isExcludeOldReceipts,
+                                                             String appleSecret, String googleClientId, String googlePrivateKey,
+                                                             Consumer<IAPValidator> configurer) {
+        if (null == storeCode) {
+            return null;
+        }
+        ValidatorKey key = new ValidatorKey(storeCode, isSandBox, isExcludeOldReceipts, appleSecret, googleClientId, googlePrivateKey);
+        IAPValidator validator = sharedValidators.get(key);
+        if (validator != null) {
+            return validator;
+        }
+        validator = getValidatorForPlatform(storeCode, isSandBox, isExcludeOldReceipts);
+        if (validator == null) {
+            return null;
+        }
+        validator.setAppleSecret(appleSecret);
+        validator.setGoogleClientId(googleClientId);
+        validator.setGooglePrivateKey(googlePrivateKey);
+        if (configurer != null) {
+            configurer.accept(validator);
+        }
+        validator.frozen = true;
+        if (validator.retryPolicy != null) {
+            // the policy is reachable through getRetryPolicy so it's frozen with the validator
+            validator.retryPolicy.freeze();
+        }
+        IAPValidator existing = sharedValidators.putIfAbsent(key, validator);
+        if (existing != null) {
+            return existing;
+        }
+        validator.warmUp();
+        return validator;
+    }
+
+    /**
+     * Validates receipts from several stores at once. Each receipt is routed to the validator
+     * registered for its {@link Receipt#getStoreCode()} and every store runs concurrently within
+     * its own validator's {@link #getMaxConcurrentValidations()} limit.
+     *
+     * @param validators the validators keyed by store code
+     * @param receipts the receipts to validate
+     * @param isSubs true if the receipts are for subscriptions
+     * @return one result per receipt in the order of {@code receipts}
+     */
+    public static List<ValidationResult> validateAll(Map<String, IAPValidator> validators, List<Receipt> receipts, boolean isSubs) {
+        ValidationResult[] results = new ValidationResult[receipts.size()];
+        Map<String, List<Integer>> indexesByStore = new LinkedHashMap<>();
+        int len = receipts.size();
+        for (int i = 0; i < len; i++) {
+            Receipt receipt = receipts.get(i);
+            String storeCode = receipt.getStoreCode();
+            if (storeCode == null || validators.get(storeCode) == null) {
+                results[i] = new ValidationResult(receipt, null, new IllegalArgumentException("No validator for store " + storeCode));
+                continue;
+            }
+            List<Integer> indexes = indexesByStore.get(storeCode);
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                indexesByStore.put(storeCode, indexes);
+            }
+            indexes.add(i);
+        }
+
+        List<CompletableFuture<List<ValidationResult>>> pending = new ArrayList<>();
+        List<List<Integer>> pendingIndexes = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> e : indexesByStore.entrySet()) {
+            List<Receipt> storeReceipts = new ArrayList<>(e.getValue().size());
+            for (Integer i : e.getValue()) {
+                storeReceipts.add(receipts.get(i));
+            }
+            pending.add(validators.get(e.getKey()).validateAllAsync(storeReceipts, isSubs));
+            pendingIndexes.add(e.getValue());
+        }
+        int plen = pending.size();
+        for (int i = 0; i < plen; i++) {
+            List<ValidationResult> storeResults = join(pending.get(i));
+            List<Integer> indexes = pendingIndexes.get(i);
+            int slen = indexes.size();
+            for (int j = 0; j < slen; j++) {
+                results[indexes.get(j)] = storeResults.get(j);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Indicates whether the validator is shared and its configuration can no longer change
+     *
+     * @return true if the setters throw
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Invoked by every configuration setter, fails once the validator is shared
+     *
+     * @throws IllegalStateException if the validator is frozen
+     */
+    protected final void checkConfigurable() {
+        if (frozen) {
+            throw new IllegalStateException("A shared validator can't be reconfigured");
+        }
+    }
+
     public String getAppleSecret() {
         return appleSecret;
     }
 
     public void setAppleSecret(String secret) {
+        checkConfigurable();
         appleSecret = secret;
     }
 
     public abstract Receipt[] validate(Receipt receipt, boolean isSubs) throws IOException;
 
+    /**
+     * Validates the receipt by the given deadline. Every store request, e.g. a token refresh or
+     * the retry against the other Apple environment, gets the time left as its connect and read
+     * timeouts and the validation fails with a
+     * {@link com.smartral.inappbilling.utils.io.ConnectionRequest.DeadlineExceededException} once
+     * no time is left. Validators that don't support deadlines ignore it.
+     *
+     * @param receipt the receipt to validate
+     * @param isSubs true if the receipt is for a subscription
+     * @param deadline the time in milliseconds since the epoch or 0 for none
+     * @return the validated receipts
+     * @throws IOException if the validation failed
+     */
+    public Receipt[] validate(Receipt receipt, boolean isSubs, long deadline) throws IOException {
+        return validate(receipt, isSubs);
+    }
+
+    /**
+     * Validates the receipt without blocking the calling thread. The network requests are
+     * placed on the {@link com.smartral.inappbilling.utils.io.ConnectionRequest} queue and the
+     * returned future is completed from the network thread once the store has answered.
+     *
+     * @param receipt the receipt to validate
+     * @param isSubs true if the receipt is for a subscription
+     * @return a future that completes with the validated receipts or exceptionally on failure
+     */
+    public abstract CompletableFuture<Receipt[]> validateAsync(Receipt receipt, boolean isSubs);
+
+    /**
+     * Validates the receipt by the given deadline without blocking the calling thread, see
+     * {@link #validate(Receipt, boolean, long)}
+     *
+     * @param receipt the receipt to validate
+     * @param isSubs true if the receipt is for a subscription
+     * @param deadline the time in milliseconds since the epoch or 0 for none
+     * @return a future that completes with the validated receipts or exceptionally on failure
+     */
+    public CompletableFuture<Receipt[]> validateAsync(Receipt receipt, boolean isSubs, long deadline) {
+        return validateAsync(receipt, isSubs);
+    }
+
+    /**
+     * Prepares the validator for its first validation e.g. by fetching credentials ahead of time.
+     * Shared validators are warmed up when they are created.
+     *
+     * @return a future that completes once the validator is ready
+     */
+    public CompletableFuture<Void> warmUp() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Validates all the receipts with this validator keeping at most
+     * {@link #getMaxConcurrentValidations()} validations in flight. A failure only affects the
+     * result of the receipt that failed.
+     *
+     * @param receipts the receipts to validate
+     * @param isSubs true if the receipts are for subscriptions
+     * @return one result per receipt in the order of {@code receipts}
+     */
+    public List<ValidationResult> validateAll(List<Receipt> receipts, boolean isSubs) {
+        return join(validateAllAsync(receipts, isSubs));
+    }
+
+    /**
+     * Non blocking version of {@link #validateAll(java.util.List, boolean)}
+     *
+     * @param receipts the receipts to validate
+     * @param isSubs true if the receipts are for subscriptions
+     * @return a future completing with one result per receipt in the order of {@code receipts}
+     */
+    public CompletableFuture<List<ValidationResult>> validateAllAsync(List<Receipt> receipts, boolean isSubs) {
+        BulkValidation bulk = new BulkValidation(receipts, isSubs);
+        if (receipts.isEmpty()) {
+            bulk.done.complete(new ArrayList<ValidationResult>());
+            return bulk.done;
+        }
+        int lanes = Math.max(1, Math.min(maxConcurrentValidations, receipts.size()));
+        for (int i = 0; i < lanes; i++) {
+            bulk.next();
+        }
+        return bulk.done;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(ex);
+        } catch (ExecutionException ex) {
+            throw new CompletionException(ex.getCause());
+        }
+    }
+
+    /**
+     * Registry key for shared validators
+     */
+    private static class ValidatorKey {
+        private final String storeCode;
+        private final boolean isSandBox;
+        private final boolean isExcludeOldReceipts;
+        private final String appleSecret;
+        private final String googleClientId;
+        private final String googlePrivateKey;
+
+        ValidatorKey(String storeCode, boolean isSandBox, boolean isExcludeOldReceipts,
+                     String appleSecret, String googleClientId, String googlePrivateKey) {
+            this.storeCode = storeCode;
+            this.isSandBox = isSandBox;
+            this.isExcludeOldReceipts = isExcludeOldReceipts;
+            this.appleSecret = appleSecret;
+            this.googleClientId = googleClientId;
+            this.googlePrivateKey = googlePrivateKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ValidatorKey)) {
+                return false;
+            }
+            ValidatorKey k = (ValidatorKey) o;
+            return storeCode.equals(k.storeCode) && isSandBox == k.isSandBox
+                    && isExcludeOldReceipts == k.isExcludeOldReceipts
+                    && Objects.equals(appleSecret, k.appleSecret)
+                    && Objects.equals(googleClientId, k.googleClientId)
+                    && Objects.equals(googlePrivateKey, k.googlePrivateKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(storeCode, isSandBox, isExcludeOldReceipts, appleSecret, googleClientId, googlePrivateKey);
+        }
+    }
+
+    /**
+     * State of a validateAll call. Each lane validates one receipt at a time and picks the next
+     * unclaimed receipt once it is done so the number of lanes bounds the concurrency.
+     */
+    private class BulkValidation {
+        private final List<Receipt> receipts;
+        private final boolean isSubs;
+        private final ValidationResult[] results;
+        private final AtomicInteger nextIndex = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final CompletableFuture<List<ValidationResult>> done = new CompletableFuture<>();
+
+        BulkValidation(List<Receipt> receipts, boolean isSubs) {
+            this.receipts = receipts;
+            this.isSubs = isSubs;
+            this.results = new ValidationResult[receipts.size()];
+        }
+
+        void next() {
+            int i;
+            while ((i = nextIndex.getAndIncrement()) < results.length) {
+                final int index = i;
+                final Receipt receipt = receipts.get(index);
+                CompletableFuture<Receipt[]> f;
+                try {
+                    f = validateAsync(receipt, isSubs);
+                } catch (RuntimeException ex) {
+                    f = new CompletableFuture<>();
+                    f.completeExceptionally(ex);
+                }
+                if (!f.isDone()) {
+                    f.whenComplete((value, err) -> {
+                        record(index, receipt, value, err);
+                        next();
+                    });
+                    return;
+                }
+                Receipt[] value = null;
+                Throwable err = null;
+                try {
+                    value = f.join();
+                } catch (CompletionException ex) {
+                    err = ex.getCause();
+                } catch (RuntimeException ex) {
+                    err = ex;
+                }
+                record(index, receipt, value, err);
+            }
+        }
+
+        private void record(int index, Receipt receipt, Receipt[] value, Throwable err) {
+            if (err instanceof CompletionException && err.getCause() != null) {
+                err = err.getCause();
+            }
+            results[index] = new ValidationResult(receipt, err == null ? value : null, err);
+            if (completed.incrementAndGet() == results.length) {
+                done.complete(Arrays.asList(results));
+            }
+        }
+    }
+
+    /**
+     * The maximum number of validations that {@link #validateAll(java.util.List, boolean)} keeps
+     * in flight against this validator's store
+     *
+     * @return the maxConcurrentValidations
+     */
+    public int getMaxConcurrentValidations() {
+        return maxConcurrentValidations;
+    }
+
+    /**
+     * The maximum number of validations that {@link #validateAll(java.util.List, boolean)} keeps
+     * in flight against this validator's store
+     *
+     * @param maxConcurrentValidations the maxConcurrentValidations to set
+     */
+    public void setMaxConcurrentValidations(int maxConcurrentValidations) {
+        checkConfigurable();
+        this.maxConcurrentValidations = maxConcurrentValidations;
+    }
+
+    /**
+     * The priority of the network requests this validator queues, e.g. a validator for
+     * interactive purchases can use {@link ConnectionRequest#PRIORITY_HIGH} so its requests run
+     * ahead of those of a validator for background re-validation
+     *
+     * @return the requestPriority
+     */
+    public byte getRequestPriority() {
+        return requestPriority;
+    }
+
+    /**
+     * The priority of the network requests this validator queues, e.g. a validator for
+     * interactive purchases can use {@link ConnectionRequest#PRIORITY_HIGH} so its requests run
+     * ahead of those of a validator for background re-validation
+     *
+     * @param requestPriority one of the ConnectionRequest priority constants
+     */
+    public void setRequestPriority(byte requestPriority) {
+        checkConfigurable();
+        this.requestPriority = requestPriority;
+    }
+
+    /**
+     * The policy retrying store requests that failed transiently, e.g. with a 5xx response, a
+     * timeout or Apple status 21005. Retries draw from {@link RetryPolicy#getSharedBudget()}
+     * unless the policy has its own budget.
+     *
+     * @return the retryPolicy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * The policy retrying store requests that failed transiently
+     *
+     * @param retryPolicy the policy or null to fail on the first error
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        checkConfigurable();
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * The time in milliseconds a validation without an explicit deadline may take, 0 for no limit
+     *
+     * @return the validationTimeout
+     */
+    public long getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * Bounds every validation without an explicit deadline, including those of
+     * {@link #validateAll(java.util.List, boolean)}, to the given time. Off by default.
+     *
+     * @param validationTimeout the time in milliseconds or 0 for no limit
+     */
+    public void setValidationTimeout(long validationTimeout) {
+        checkConfigurable();
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * The deadline of a validation starting now without an explicit deadline
+     *
+     * @return the deadline or 0 for none
+     */
+    protected long getDefaultDeadline() {
+        return validationTimeout > 0 ? System.currentTimeMillis() + validationTimeout : 0;
+    }
+
+    /**
+     * Indicates whether store requests pass the circuit breaker and the adaptive concurrency
+     * limit of their host, see {@link EndpointGuard}
+     *
+     * @return the guardEndpoints
+     */
+    public boolean isGuardEndpoints() {
+        return guardEndpoints;
+    }
+
+    /**
+     * Guards store requests with the circuit breaker and the adaptive concurrency limit of their
+     * host so a slow store can't hold all the network threads. On by default.
+     *
+     * @param guardEndpoints false to send store requests right away
+     */
+    public void setGuardEndpoints(boolean guardEndpoints) {
+        checkConfigurable();
+        this.guardEndpoints = guardEndpoints;
+    }
+
+    /**
+     * The guard of the host of the url or null if endpoints aren't guarded
+     *
+     * @param url the url of a store request
+     * @return the guard or null
+     */
+    protected EndpointGuard getEndpointGuard(String url) {
+        return guardEndpoints ? EndpointGuard.forUrl(url) : null;
+    }
+
     /**
      * @return the googleClientId
      */
@@ -54,6 +541,7 @@ public abstract class IAPValidator {
      * @param googleClientId the googleClientId to set
      */
     public void setGoogleClientId(String googleClientId) {
+        checkConfigurable();
         this.googleClientId = googleClientId;
     }
 
@@ -68,6 +556,7 @@ public abstract class IAPValidator {
      * @param googlePrivateKeyFile the googlePrivateKey to set
      */
     public void setGooglePrivateKey(String googlePrivateKeyFile) {
+        checkConfigurable();
         this.googlePrivateKey = googlePrivateKeyFile;
     }
 }
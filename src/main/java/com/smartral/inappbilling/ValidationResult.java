@@ -0,0 +1,53 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.payment.Receipt;
+
+/**
+ * The outcome of validating a single receipt as part of a bulk validation.
+ * Exactly one of {@link #getReceipts()} and {@link #getError()} is set.
+ */
+public class ValidationResult {
+
+    private final Receipt receipt;
+    private final Receipt[] receipts;
+    private final Throwable error;
+
+    ValidationResult(Receipt receipt, Receipt[] receipts, Throwable error) {
+        this.receipt = receipt;
+        this.receipts = receipts;
+        this.error = error;
+    }
+
+    /**
+     * @return the receipt that was submitted for validation
+     */
+    public Receipt getReceipt() {
+        return receipt;
+    }
+
+    /**
+     * @return the validated receipts or null if the validation failed
+     */
+    public Receipt[] getReceipts() {
+        return receipts;
+    }
+
+    /**
+     * @return the failure or null if the validation succeeded
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return true if the store answered the validation without error
+     */
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
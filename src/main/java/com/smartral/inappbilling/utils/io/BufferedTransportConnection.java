@@ -0,0 +1,195 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A connection that buffers the request body and the whole response, the response is available
+ * once the future returned by {@link #send()} completes.
+ */
+abstract class BufferedTransportConnection implements Transport.Connection {
+
+    protected final URL url;
+    protected final boolean doOutput;
+    protected final Map<String, List<String>> requestHeaders = new LinkedHashMap<>();
+    protected final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    protected final CompletableFuture<Void> response = new CompletableFuture<>();
+
+    protected int responseCode = -1;
+    protected String responseMessage;
+    protected final Map<String, List<String>> responseHeaders = new LinkedHashMap<>();
+    protected byte[] responseBody;
+    protected volatile long connectedAt;
+    protected volatile long requestSentAt;
+    protected volatile long firstByteAt;
+
+    private String method;
+    private boolean sent;
+
+    BufferedTransportConnection(String url, boolean doOutput) {
+        try {
+            this.url = new URL(url);
+        } catch (MalformedURLException ex) {
+            throw new RuntimeException(ex);
+        }
+        this.doOutput = doOutput;
+    }
+
+    /**
+     * Starts the exchange, it completes {@link #response} when the response was read
+     */
+    protected abstract void exchange();
+
+    @Override
+    public void setRequestMethod(String method) {
+        this.method = method;
+    }
+
+    /**
+     * The request method, POST when a body is written and no method was set
+     */
+    public String getRequestMethod() {
+        if (method != null) {
+            return method;
+        }
+        return doOutput ? "POST" : "GET";
+    }
+
+    @Override
+    public void addRequestHeader(String key, String value) {
+        List<String> values = requestHeaders.get(key);
+        if (values == null) {
+            values = new ArrayList<>();
+            requestHeaders.put(key, values);
+        }
+        values.add(value);
+    }
+
+    @Override
+    public void setChunkedStreamingMode(int chunkLength) {
+        // the body is always buffered and sent with its length
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return requestBody;
+    }
+
+    @Override
+    public synchronized CompletableFuture<Void> send() {
+        if (!sent) {
+            sent = true;
+            exchange();
+        }
+        return response;
+    }
+
+    private void await() throws IOException {
+        try {
+            send().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        await();
+        return responseCode;
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        await();
+        return responseMessage;
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        try {
+            await();
+        } catch (IOException ex) {
+            return Collections.emptyMap();
+        }
+        return responseHeaders;
+    }
+
+    @Override
+    public int getContentLength() {
+        return responseBody == null ? -1 : responseBody.length;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        await();
+        return new ByteArrayInputStream(responseBody == null ? new byte[0] : responseBody);
+    }
+
+    @Override
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    @Override
+    public long getRequestSentAt() {
+        return requestSentAt;
+    }
+
+    @Override
+    public long getFirstByteAt() {
+        return firstByteAt;
+    }
+
+    /**
+     * Returns the first request header with the given name ignoring case or null
+     */
+    protected String getRequestHeader(String name) {
+        for (Map.Entry<String, List<String>> e : requestHeaders.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty()) {
+                return e.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first response header with the given name ignoring case or null
+     */
+    protected String getResponseHeader(String name) {
+        for (Map.Entry<String, List<String>> e : responseHeaders.entrySet()) {
+            if (e.getKey() != null && e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty()) {
+                return e.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    protected void addResponseHeader(String key, String value) {
+        List<String> values = responseHeaders.get(key);
+        if (values == null) {
+            values = new ArrayList<>();
+            responseHeaders.put(key, values);
+        }
+        values.add(value);
+    }
+}
@@ -0,0 +1,154 @@
+package com.smartral.inappbilling.utils.io;
+
+/**
+ * Stops calls to an endpoint that keeps failing. The breaker opens once the failure rate over the
+ * last calls crosses a threshold, rejects calls while open and then lets a single probe through.
+ * The breaker closes again if the probe succeeds.
+ *
+ * @see EndpointGuard
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean[] window;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openDuration;
+    private int calls;
+    private int position;
+    private int failures;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probing;
+    private long rejected;
+
+    /**
+     * Creates a breaker opening at a failure rate of 50% over the last 20 calls, once there were
+     * at least 10, for 5 seconds
+     */
+    public CircuitBreaker() {
+        this(20, 10, 0.5, 5000);
+    }
+
+    /**
+     * @param windowSize the number of recent calls the failure rate is computed over
+     * @param minimumCalls the number of calls needed before the breaker can open
+     * @param failureRateThreshold the failure rate opening the breaker between 0 and 1
+     * @param openDuration the time in milliseconds the breaker stays open before a probe
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long openDuration) {
+        this.window = new boolean[windowSize];
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks whether a call may proceed, every permitted call must be followed by
+     * {@link #onSuccess()}, {@link #onFailure()} or {@link #onIgnore()}
+     *
+     * @return true if the call may proceed
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openDuration) {
+                rejected++;
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                rejected++;
+                return false;
+            }
+            probing = true;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            reset();
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (calls >= minimumCalls && failures >= failureRateThreshold * calls) {
+            open();
+        }
+    }
+
+    /**
+     * Releases a permitted call whose outcome says nothing about the endpoint, e.g. it was
+     * cancelled
+     */
+    public synchronized void onIgnore() {
+        probing = false;
+    }
+
+    private void record(boolean failure) {
+        if (calls == window.length) {
+            if (window[position]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        window[position] = failure;
+        if (failure) {
+            failures++;
+        }
+        position = (position + 1) % window.length;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        probing = false;
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        probing = false;
+        calls = 0;
+        failures = 0;
+        position = 0;
+    }
+
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openDuration) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    /**
+     * The failure rate over the recent calls between 0 and 1
+     */
+    public synchronized double getFailureRate() {
+        return calls == 0 ? 0 : failures / (double) calls;
+    }
+
+    /**
+     * The number of calls rejected
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public String toString() {
+        return getState() + " failureRate=" + getFailureRate() + " rejected=" + getRejected();
+    }
+}
@@ -0,0 +1,230 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Limits the calls in flight to an endpoint with a limit that adapts to its latency. Latencies
+ * are collected in windows of at least the limit calls, roughly one round trip at full
+ * concurrency, and the limit changes once per window: it shrinks by 10% when a call of the window
+ * failed or the median latency of the window exceeds a tolerance of the baseline, and grows by
+ * the square root of the limit when the window was healthy and used the limit. The baseline is
+ * the low percentile of a window so a single fast outlier doesn't set it, and follows a lasting
+ * rise of the latency slowly. Calls beyond the limit wait in a bounded queue for a limited time
+ * and are rejected once it's full or the time is up.
+ *
+ * @see EndpointGuard
+ */
+public class ConcurrencyLimiter {
+
+    private static final double DECREASE = 0.9;
+    private static final int MIN_WINDOW = 10;
+    private static final double BASELINE_PERCENTILE = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int maxQueue = 100;
+    private long maxQueueWait = 2000;
+    private double tolerance = 2.0;
+    private double baseline;
+    private long rejected;
+    private long[] window = new long[MIN_WINDOW];
+    private int samples;
+    private int calls;
+    private boolean windowDropped;
+    private int windowInFlight;
+
+    /**
+     * Creates a limiter starting at 20 calls between 1 and 200
+     */
+    public ConcurrencyLimiter() {
+        this(20, 1, 200);
+    }
+
+    /**
+     * @param initialLimit the limit before any latency was observed
+     * @param minLimit the lowest limit
+     * @param maxLimit the highest limit
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.limit = initialLimit;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Takes a slot, every acquired slot must be released
+     *
+     * @return a future completing once the slot is held or exceptionally with a
+     * {@link EndpointGuard.RejectedException} if the call is shed
+     */
+    public CompletableFuture<Void> acquire() {
+        final CompletableFuture<Void> out = new CompletableFuture<>();
+        synchronized (this) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                out.complete(null);
+                return out;
+            }
+            if (waiters.size() >= maxQueue) {
+                rejected++;
+                out.completeExceptionally(new EndpointGuard.RejectedException("Too many calls in flight (" + inFlight + ")"));
+                return out;
+            }
+            waiters.add(out);
+        }
+        RetryPolicy.schedule(maxQueueWait, new Runnable() {
+            public void run() {
+                synchronized (ConcurrencyLimiter.this) {
+                    if (!waiters.remove(out)) {
+                        return;
+                    }
+                    rejected++;
+                }
+                out.completeExceptionally(new EndpointGuard.RejectedException("Timed out waiting for a slot"));
+            }
+        });
+        return out;
+    }
+
+    /**
+     * Releases a slot and adapts the limit to the outcome of the call
+     *
+     * @param latencyNanos the latency of the call
+     * @param dropped true if the call failed in a way that hints at overload, e.g. a timeout or
+     *                a 5xx response
+     */
+    public void release(long latencyNanos, boolean dropped) {
+        List<CompletableFuture<Void>> admitted;
+        synchronized (this) {
+            windowInFlight = Math.max(windowInFlight, inFlight);
+            calls++;
+            if (dropped) {
+                windowDropped = true;
+            } else {
+                if (samples == window.length) {
+                    window = Arrays.copyOf(window, samples * 2);
+                }
+                window[samples++] = latencyNanos;
+            }
+            if (calls >= Math.max(MIN_WINDOW, (int) limit)) {
+                adapt();
+            }
+            admitted = releaseSlot();
+        }
+        complete(admitted);
+    }
+
+    /**
+     * Closes the current window and changes the limit once for all its calls
+     */
+    private void adapt() {
+        boolean slow = false;
+        if (samples > 0) {
+            Arrays.sort(window, 0, samples);
+            long low = window[(int) (samples * BASELINE_PERCENTILE)];
+            long median = window[samples / 2];
+            if (baseline == 0 || low < baseline) {
+                baseline = low;
+            } else {
+                // let the baseline follow a lasting change of the latency
+                baseline += (low - baseline) * 0.1;
+            }
+            slow = median > baseline * tolerance;
+        }
+        if (windowDropped || slow) {
+            limit = Math.max(minLimit, limit * DECREASE);
+        } else if (windowInFlight >= (int) limit / 2) {
+            // only grow when the limit is actually used
+            limit = Math.min(maxLimit, limit + Math.max(1, Math.sqrt(limit)));
+        }
+        samples = 0;
+        calls = 0;
+        windowDropped = false;
+        windowInFlight = 0;
+    }
+
+    /**
+     * Releases a slot without a latency sample, e.g. for a cancelled call
+     */
+    public void release() {
+        List<CompletableFuture<Void>> admitted;
+        synchronized (this) {
+            admitted = releaseSlot();
+        }
+        complete(admitted);
+    }
+
+    private List<CompletableFuture<Void>> releaseSlot() {
+        inFlight--;
+        List<CompletableFuture<Void>> admitted = null;
+        while (inFlight < (int) limit && !waiters.isEmpty()) {
+            if (admitted == null) {
+                admitted = new ArrayList<>();
+            }
+            admitted.add(waiters.poll());
+            inFlight++;
+        }
+        return admitted;
+    }
+
+    private static void complete(List<CompletableFuture<Void>> admitted) {
+        if (admitted != null) {
+            for (CompletableFuture<Void> f : admitted) {
+                f.complete(null);
+            }
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueDepth() {
+        return waiters.size();
+    }
+
+    /**
+     * The number of calls shed because the queue was full or they waited too long
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * The number of calls that may wait for a slot, defaults to 100
+     */
+    public synchronized void setMaxQueue(int maxQueue) {
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * The time in milliseconds a call waits for a slot before it's rejected, defaults to 2000
+     */
+    public synchronized void setMaxQueueWait(long maxQueueWait) {
+        this.maxQueueWait = maxQueueWait;
+    }
+
+    /**
+     * How many times slower than the baseline the median latency of a window may be before the
+     * limit shrinks, defaults to 2
+     */
+    public synchronized void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public String toString() {
+        return "limit=" + getLimit() + " inFlight=" + getInFlight() + " queued=" + getQueueDepth() + " rejected=" + getRejected();
+    }
+}
@@ -33,25 +33,36 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,8 +82,23 @@ import java.util.logging.Logger;
  */
 public class ConnectionRequest {
     
+    private static volatile Executor defaultNetworkExecutor;
+    private static volatile Transport defaultTransport = new HttpURLConnectionTransport();
+    private static volatile int responseDrainLimit = Integer.getInteger("iap.responseDrainLimit", 65536);
+    private static volatile int defaultReadTimeout = Integer.getInteger("iap.readTimeout", 60000);
     private Executor mainExecutor;
     private Executor networkExecutor;
+    private Transport transport;
+    private volatile Transport.Connection activeConnection;
+    private static final List<RequestMetrics.Listener> metricsListeners = new CopyOnWriteArrayList<RequestMetrics.Listener>();
+    private volatile RequestMetrics metrics;
+    private long queuedAt;
+    private RetryPolicy retryPolicy;
+    private Boolean idempotent;
+    private int retries;
+    private EndpointGuard endpointGuard;
+    private RateLimiter rateLimiter;
+    private String[] rateLimitKeys;
     private Hashtable cookies;
     private static ThreadLocal<Hashtable> threadCookies;
     
@@ -107,38 +133,32 @@ public class ConnectionRequest {
     
     private class CodenameOneImplementation {
 
-        private HttpURLConnection c(Object connection) {
-            return (HttpURLConnection)connection;
+        private Transport.Connection c(Object connection) {
+            return (Transport.Connection)connection;
         }
         
         private void setPostRequest(Object connection, boolean post) {
-            ((HttpURLConnection)connection).setDoInput(post);
             try {
-                ((HttpURLConnection)connection).setRequestMethod(post ? "POST" : "GET");
+                c(connection).setRequestMethod(post ? "POST" : "GET");
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
             }
         }
 
         private void setHeader(Object connection, String key, String value) {
-            HttpURLConnection c = (HttpURLConnection)connection;
-            c.addRequestProperty(key, value);
+            c(connection).addRequestHeader(key, value);
         }
 
         private void setChunkedStreamingMode(Object connection, int chunkedStreamingLen) {
             c(connection).setChunkedStreamingMode(chunkedStreamingLen);
         }
 
+        private void setReadTimeout(Object connection, int readTimeout) {
+            c(connection).setReadTimeout(readTimeout);
+        }
+
         private Object connect(String actualUrl, boolean readRequest, boolean writeRequest, int timeout) throws IOException {
-            try {
-                HttpURLConnection conn = (HttpURLConnection)(new URL(actualUrl)).openConnection();
-                conn.setDoInput(readRequest);
-                conn.setDoOutput(writeRequest);
-                conn.setConnectTimeout(timeout);
-                return conn;
-            } catch (MalformedURLException ex) {
-                throw new RuntimeException(ex);
-            }
+            return getTransport().open(actualUrl, readRequest, writeRequest, timeout);
         }
 
         private Object connect(String actualUrl, boolean readRequest, boolean writeRequest) throws IOException {
@@ -216,21 +236,18 @@ public class ConnectionRequest {
         }
 
         private String[] getHeaderFields(String name, Object connection) {
-            HttpURLConnection c = (HttpURLConnection) connection;
+            Map<String, List<String>> fields = c(connection).getHeaderFields();
             List<String> headers = new ArrayList<String>();
 
             // we need to merge headers with differing case since this should be case insensitive
-            for(String key : c.getHeaderFields().keySet()) {
+            for(String key : fields.keySet()) {
                 if(key != null && key.equalsIgnoreCase(name)) {
-                    headers.addAll(c.getHeaderFields().get(key));
+                    headers.addAll(fields.get(key));
                 }
             }
             if (headers.size() > 0) {
-                List<String> v = new ArrayList<String>();
-                v.addAll(headers);
-                Collections.reverse(v);
-                String[] s = new String[v.size()];
-                v.toArray(s);
+                String[] s = new String[headers.size()];
+                headers.toArray(s);
                 return s;
             }
             return null;
@@ -282,8 +299,10 @@ public class ConnectionRequest {
             //}
         }
 
-        private String getHeaderField(String location, Object connection) {
-            return c(connection).getHeaderField(location);
+        private String getHeaderField(String name, Object connection) {
+            // the last value wins like HttpURLConnection.getHeaderField
+            String[] values = getHeaderFields(name, connection);
+            return values == null ? null : values[values.length - 1];
         }
 
         private void cleanup(Object output) {
@@ -292,6 +311,8 @@ public class ConnectionRequest {
                     ((InputStream)output).close();
                 } else if (output instanceof OutputStream) {
                     ((OutputStream)output).close();
+                } else if (output instanceof Transport.Connection) {
+                    ((Transport.Connection)output).close();
                 }
             } catch (Exception ex) {
                 Log.e(ex);
@@ -307,19 +328,46 @@ public class ConnectionRequest {
         }
 
         private InputStream openInputStream(Object connection) throws IOException {
-            if(connection instanceof HttpURLConnection) {
-                HttpURLConnection ht = (HttpURLConnection)connection;
-                if(ht.getResponseCode() < 400) {
-                    return new BufferedInputStream(ht.getInputStream());
+            return new BufferedInputStream(new CountingInputStream(c(connection).getInputStream(), metrics));
+        }
+
+        private void openConnection(Object connection) throws IOException {
+            c(connection).connect();
+        }
+
+        /**
+         * Reads and discards an unread response body so the connection can be kept alive,
+         * bodies larger than the drain limit are abandoned with their connection
+         */
+        private void drain(Object connection) {
+            InputStream in = null;
+            try {
+                in = c(connection).getInputStream();
+                if(in == null) {
+                    return;
                 }
-                return new BufferedInputStream(ht.getErrorStream());
-            } else {
-                return new BufferedInputStream(((URLConnection) connection).getInputStream());
-            }   
+                byte[] buffer = new byte[4096];
+                long left = responseDrainLimit;
+                while(left > 0) {
+                    int n = in.read(buffer, 0, (int)Math.min(buffer.length, left));
+                    if(n < 0) {
+                        break;
+                    }
+                    left -= n;
+                    RequestMetrics m = metrics;
+                    if(m != null) {
+                        m.addBytesIn(n);
+                    }
+                }
+            } catch(IOException ex) {
+                // the connection won't be reused
+            } finally {
+                cleanup(in);
+            }
         }
 
         private String[] getHeaderFieldNames(Object connection) {
-            Set<String> s = ((HttpURLConnection) connection).getHeaderFields().keySet();
+            Set<String> s = c(connection).getHeaderFields().keySet();
             String[] resp = new String[s.size()];
             s.toArray(resp);
             return resp;
@@ -352,6 +400,60 @@ public class ConnectionRequest {
         
     }
     
+    /**
+     * Counts the bytes of the request body
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final RequestMetrics metrics;
+
+        CountingOutputStream(OutputStream out, RequestMetrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.addBytesOut(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.addBytesOut(len);
+        }
+    }
+
+    /**
+     * Counts the bytes of the response body
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final RequestMetrics metrics;
+
+        CountingInputStream(InputStream in, RequestMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if(b > -1 && metrics != null) {
+                metrics.addBytesIn(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if(n > 0 && metrics != null) {
+                metrics.addBytesIn(n);
+            }
+            return n;
+        }
+    }
+
     private CodenameOneImplementation newImplementation() {
         return new CodenameOneImplementation();
     }
@@ -494,6 +596,8 @@ public class ConnectionRequest {
     private static boolean defaultFollowRedirects = true;
     private boolean followRedirects = defaultFollowRedirects;
     private int timeout = -1;
+    private int readTimeout = -1;
+    private long deadline;
     private InputStream input;
     private OutputStream output;
     private int progress = NetworkEvent.PROGRESS_TYPE_OUTPUT;
@@ -515,6 +619,8 @@ public class ConnectionRequest {
     private int chunkedStreamingLen = -1;
     private Exception failureException;
     private int failureErrorCode;
+    private int attempt;
+    private volatile CompletableFuture<ConnectionRequest> completion;
     private String destinationFile;
     private String destinationStorage;
     
@@ -676,23 +782,51 @@ public class ConnectionRequest {
      * Performs the actual network request on behalf of the network manager
      */
     void performOperation() throws IOException {
+        finishOperation(beginOperation());
+    }
+
+    /**
+     * Connects and sends the request
+     *
+     * @return the connection the response is read from or null if the request was stopped
+     */
+    private Transport.Connection beginOperation() throws IOException {
         if(shouldStop()) {
-            return;
+            return null;
         }
+        long now = System.nanoTime();
+        RequestMetrics m = new RequestMetrics(url, attempt, queuedAt != 0 ? queuedAt : now, now);
+        metrics = m;
         CodenameOneImplementation impl = Util.getImplementation(this);
         Object connection = null;
         input = null;
         output = null;
         redirecting = false;
+        boolean sent = false;
         try {
             String actualUrl = createRequestURL();
-            if(timeout > 0) {
-                connection = impl.connect(actualUrl, isReadRequest(), isPost() || isWriteRequest(), timeout);
+            int connectTimeout = timeout;
+            int read = readTimeout > 0 ? readTimeout : defaultReadTimeout;
+            if(deadline > 0) {
+                // the attempt gets what is left of the deadline as its timeouts
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0) {
+                    throw new DeadlineExceededException();
+                }
+                connectTimeout = (int)Math.min(connectTimeout > 0 ? connectTimeout : 5000, remaining);
+                read = (int)Math.min(read > 0 ? read : Integer.MAX_VALUE, remaining);
+            }
+            m.connectStarted(System.nanoTime());
+            if(connectTimeout > 0) {
+                connection = impl.connect(actualUrl, isReadRequest(), isPost() || isWriteRequest(), connectTimeout);
             } else {
                 connection = impl.connect(actualUrl, isReadRequest(), isPost() || isWriteRequest());
             }
             if(shouldStop()) {
-                return;
+                return null;
+            }
+            if(read > 0) {
+                impl.setReadTimeout(connection, read);
             }
             initConnection(connection);
             if(httpMethod != null) {
@@ -729,28 +863,69 @@ public class ConnectionRequest {
                     impl.setHeader(connection, cookieHeader, s);
                 }
             }
+            impl.openConnection(connection);
+            m.connected(System.nanoTime());
+            if(shouldStop()) {
+                return null;
+            }
             if(isWriteRequest()) {
                 progress = NetworkEvent.PROGRESS_TYPE_OUTPUT;
-                output = impl.openOutputStream(connection);
+                output = new CountingOutputStream(impl.openOutputStream(connection), m);
                 if(shouldStop()) {
-                    return;
+                    return null;
                 }
                 //if(NetworkManager.getInstance().hasProgressListeners() && output instanceof BufferedOutputStream) {
                 //    ((BufferedOutputStream)output).setProgressListener(this);
                 //}
                 buildRequestBody(output);
                 if(shouldStop()) {
-                    return;
+                    return null;
                 }
-                if(output instanceof BufferedOutputStream) {
-                    ((BufferedOutputStream)output).flush();
-                    if(shouldStop()) {
-                        return;
-                    }
+                output.flush();
+                if(shouldStop()) {
+                    return null;
                 }
             }
+            m.requestSent(System.nanoTime());
             timeSinceLastUpdate = System.currentTimeMillis();
+            Transport.Connection conn = (Transport.Connection)connection;
+            activeConnection = conn;
+            conn.send();
+            sent = true;
+            return conn;
+        } finally {
+            if(!sent) {
+                impl.cleanup(output);
+                impl.cleanup(connection);
+                output = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the response of a sent request, blocks unless the transport already received it
+     *
+     * @param connection the connection returned by {@link #beginOperation()} or null
+     */
+    private void finishOperation(Transport.Connection connection) throws IOException {
+        if(connection == null) {
+            return;
+        }
+        CodenameOneImplementation impl = Util.getImplementation(this);
+        RequestMetrics m = metrics;
+        try {
             responseCode = impl.getResponseCode(connection);
+            m.firstByte(System.nanoTime());
+            // transports exchanging in the background know when each phase really ended
+            if(connection.getConnectedAt() != 0) {
+                m.connected(connection.getConnectedAt());
+            }
+            if(connection.getRequestSentAt() != 0) {
+                m.requestSent(connection.getRequestSentAt());
+            }
+            if(connection.getFirstByteAt() != 0) {
+                m.firstByte(connection.getFirstByteAt());
+            }
 
             if(isCookiesEnabled()) {
                 String[] cookies = impl.getHeaderFields("Set-Cookie", connection);
@@ -797,6 +972,8 @@ public class ConnectionRequest {
                         }
                     }
 
+                    impl.drain(connection);
+                    m.read(System.nanoTime());
                     impl.cleanup(output);
                     impl.cleanup(connection);
                     connection = null;
@@ -808,8 +985,15 @@ public class ConnectionRequest {
                     return;
                 }
 
+                if(retryOnFailure(responseCode, null, retryAfter(getHeader(connection, "Retry-After")))) {
+                    impl.drain(connection);
+                    m.read(System.nanoTime());
+                    return;
+                }
                 handleErrorResponseCode(responseCode, impl.getResponseMessage(connection));
                 if(!isReadResponseForErrors()) {
+                    impl.drain(connection);
+                    m.read(System.nanoTime());
                     return;
                 }
             }
@@ -829,7 +1013,10 @@ public class ConnectionRequest {
                     input.close();
                 }
                 input = null;
+            } else {
+                impl.drain(connection);
             }
+            m.read(System.nanoTime());
         } finally {
             // always cleanup connections/streams even in case of an exception
             impl.cleanup(output);
@@ -839,14 +1026,16 @@ public class ConnectionRequest {
             input = null;
             output = null;
             connection = null;
+            activeConnection = null;
         }
         if(!isKilled()) {
-            
+            long start = System.nanoTime();
             callSerially(new Runnable() {
                 public void run() {
                     postResponse();
                 }
             });
+            m.addDispatch(System.nanoTime() - start);
         }
     }
     
@@ -1162,35 +1351,597 @@ public class ConnectionRequest {
         //}
     }
 
+    /**
+     * Called when the request is queued by the caller as opposed to a retry
+     */
+    private void queued() {
+        retries = 0;
+        RetryPolicy p = retryPolicy;
+        if(p != null) {
+            p.getBudget().requestSent();
+        }
+    }
+
+    /**
+     * Schedules a retry if the retry policy finds the failure transient
+     *
+     * @param code the response code or 0
+     * @param err the exception or null
+     * @param retryAfter the delay the server asked for in milliseconds or 0
+     * @return true if a retry was scheduled
+     */
+    private boolean retryOnFailure(int code, Exception err, long retryAfter) {
+        RetryPolicy p = retryPolicy;
+        if(p == null || isKilled()) {
+            return false;
+        }
+        // a server asking for a longer wait than the policy or the deadline allows gets the
+        // failure surfaced rather than an early retry, and no budget token is spent on it
+        long delay = p.getDelay(retries, retryAfter);
+        if(delay < 0 || !isBefore(delay) || !p.shouldRetry(retries, isIdempotent(), code, err)) {
+            return false;
+        }
+        scheduleRetry(delay);
+        return true;
+    }
+
+    /**
+     * Checks whether a retry after the delay still has time left before the deadline
+     */
+    private boolean isBefore(long delay) {
+        return deadline <= 0 || System.currentTimeMillis() + delay < deadline;
+    }
+
+    /**
+     * Parses a Retry-After header given either in seconds or as an http date
+     *
+     * @return the delay in milliseconds or 0 if there is none
+     */
+    private static long retryAfter(String header) {
+        if(header == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(header.trim()) * 1000L;
+        } catch(NumberFormatException ex) {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try {
+                return Math.max(0, format.parse(header.trim()).getTime() - System.currentTimeMillis());
+            } catch(ParseException ex2) {
+                return 0;
+            }
+        }
+    }
+
+    private void scheduleRetry(long delay) {
+        retries++;
+        retrying = true;
+        final int scheduledAttempt = ++attempt;
+        RetryPolicy.schedule(delay, new Runnable() {
+            public void run() {
+                if(isKilled()) {
+                    fireCompletionListeners(scheduledAttempt);
+                    return;
+                }
+                addToQueue(ConnectionRequest.this, true);
+            }
+        });
+    }
+
+    /**
+     * Retries the request after the backoff of its retry policy if the policy and its budget allow
+     * another retry. This is meant for failures only the response body reveals, e.g. a store
+     * status telling the service is temporarily unavailable. The completion listeners aren't
+     * invoked for the current attempt when a retry is scheduled.
+     *
+     * @return true if a retry was scheduled
+     */
+    public boolean retryWithBackoff() {
+        RetryPolicy p = retryPolicy;
+        if(p == null || isKilled() || !isBefore(0) || !p.acquire(retries)) {
+            return false;
+        }
+        long delay = p.getDelay(retries, 0);
+        if(!isBefore(delay)) {
+            return false;
+        }
+        scheduleRetry(delay);
+        return true;
+    }
+
+    /**
+     * The policy retrying this request after transient failures or null for no retries
+     *
+     * @return the retryPolicy
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * The policy retrying this request after transient failures or null for no retries
+     *
+     * @param retryPolicy the retryPolicy to set
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Indicates whether sending this request twice is harmless, by default true for every http
+     * method but POST and PATCH
+     *
+     * @return true if the request is idempotent
+     */
+    public boolean isIdempotent() {
+        if(idempotent != null) {
+            return idempotent;
+        }
+        String method = httpMethod != null ? httpMethod.toUpperCase() : (isPost() ? "POST" : "GET");
+        return !method.equals("POST") && !method.equals("PATCH");
+    }
+
+    /**
+     * Marks a request as safe to send twice, e.g. a POST that only reads
+     *
+     * @param idempotent true if sending the request twice is harmless
+     */
+    public void setIdempotent(boolean idempotent) {
+        this.idempotent = idempotent;
+    }
+
+    /**
+     * The number of retries made since the request was queued
+     *
+     * @return the retries
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * The guard admitting this request to its host or null to send it right away
+     *
+     * @return the endpointGuard
+     */
+    public EndpointGuard getEndpointGuard() {
+        return endpointGuard;
+    }
+
+    /**
+     * Admits every attempt of this request through the circuit breaker and the concurrency limit
+     * of the guard before it takes a network thread. A rejected attempt fails with a
+     * {@link EndpointGuard.RejectedException} and isn't retried.
+     *
+     * @param endpointGuard the guard or null to send the request right away
+     */
+    public void setEndpointGuard(EndpointGuard endpointGuard) {
+        this.endpointGuard = endpointGuard;
+    }
+
+    /**
+     * The rate limiter pacing this request or null
+     *
+     * @return the rateLimiter
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Paces every attempt of this request by taking a token from the buckets of the keys before
+     * it's sent. An attempt that can't get its tokens within the maximum wait of the limiter fails
+     * with a {@link EndpointGuard.RejectedException}.
+     *
+     * @param rateLimiter the limiter or null to send the request right away
+     * @param keys the keys of the buckets
+     */
+    public void setRateLimiter(RateLimiter rateLimiter, String... keys) {
+        this.rateLimiter = rateLimiter;
+        this.rateLimitKeys = keys;
+    }
+
     /**
      * Retry the current operation in case of an exception
      */
     public void retry() {
         retrying = true;
+        attempt++;
         addToQueue(this, true);
     }
     
     public void addToQueue() {
+        resetCompletion();
+        queued();
+        addToQueue(this, true);
+    }
+
+    /**
+     * Adds the request to the queue and returns a future that completes once the request is done.
+     * The future fails with the exception that failed the request, error response codes don't
+     * fail it.
+     *
+     * @return the completion of the request
+     */
+    public CompletableFuture<ConnectionRequest> addToQueueAsync() {
+        CompletableFuture<ConnectionRequest> done = resetCompletion();
+        queued();
         addToQueue(this, true);
+        return done;
+    }
+
+    /**
+     * The completion of the last time this request was queued, see {@link #addToQueueAsync()}
+     *
+     * @return the completion future
+     */
+    public CompletableFuture<ConnectionRequest> getCompletion() {
+        CompletableFuture<ConnectionRequest> done = completion;
+        if (done == null) {
+            synchronized (this) {
+                if (completion == null) {
+                    completion = new CompletableFuture<ConnectionRequest>();
+                }
+                done = completion;
+            }
+        }
+        return done;
+    }
+
+    private synchronized CompletableFuture<ConnectionRequest> resetCompletion() {
+        if (completion == null || completion.isDone()) {
+            completion = new CompletableFuture<ConnectionRequest>();
+        }
+        return completion;
     }
     
     public void addToQueue(final ConnectionRequest req, boolean param) {
-        Runnable r = new Runnable() {
-            public void run() {
-                try {
-                    req.performOperation();
-                } catch (Exception ex) {
-                    handleException(ex);
+        req.queuedAt = System.nanoTime();
+        req.admit(req.getQueueExecutor(), req.new Operation(true) {
+            void failed(Exception ex) {
+                handleException(ex);
+            }
+        });
+    }
+
+    /**
+     * Paces the request with its rate limiter and then admits it through its endpoint guard
+     *
+     * @return the admission completing with the permit of the guard or null without a guard,
+     * null if the request needs neither
+     */
+    private CompletableFuture<EndpointGuard.Permit> admission() {
+        final EndpointGuard g = endpointGuard;
+        RateLimiter l = rateLimiter;
+        if(l == null) {
+            return g != null ? g.acquire() : null;
+        }
+        return l.acquire(rateLimitKeys).thenCompose(new Function<Void, CompletableFuture<EndpointGuard.Permit>>() {
+            public CompletableFuture<EndpointGuard.Permit> apply(Void v) {
+                return g != null ? g.acquire() : CompletableFuture.<EndpointGuard.Permit>completedFuture(null);
+            }
+        });
+    }
+
+    /**
+     * Dispatches the operation once it was admitted, a rejected operation is dispatched as well
+     * so it fails on the network thread
+     */
+    private void admit(final Executor executor, final Operation op) {
+        CompletableFuture<EndpointGuard.Permit> admission = admission();
+        if(admission == null) {
+            dispatch(executor, op);
+            return;
+        }
+        admission.whenComplete(new BiConsumer<EndpointGuard.Permit, Throwable>() {
+            public void accept(EndpointGuard.Permit p, Throwable err) {
+                if(err != null) {
+                    op.rejected = rejection(err);
+                } else {
+                    op.permit = p;
                 }
+                dispatch(executor, op);
             }
-        };
-        if (networkExecutor != null) {
-            networkExecutor.execute(r);
+        });
+    }
+
+    /**
+     * Blocks the calling thread until the operation was admitted
+     */
+    private void admitInline(Operation op) throws InterruptedException {
+        CompletableFuture<EndpointGuard.Permit> admission = admission();
+        if(admission == null) {
+            return;
+        }
+        try {
+            op.permit = admission.get();
+        } catch(ExecutionException ex) {
+            op.rejected = rejection(ex.getCause());
+        }
+    }
+
+    private static IOException rejection(Throwable err) {
+        if(err instanceof CompletionException && err.getCause() != null) {
+            err = err.getCause();
+        }
+        return err instanceof IOException ? (IOException)err : new IOException(err);
+    }
+
+    /**
+     * Runs a queued request. While a non blocking transport waits for the response the network
+     * thread is released and the response is processed on the network executor once it arrived.
+     */
+    private abstract class Operation implements Runnable {
+        private final int currentAttempt = attempt;
+        private final boolean release;
+        private Transport.Connection sent;
+        private RequestMetrics measured;
+        private EndpointGuard.Permit permit;
+        private IOException rejected;
+        private long startedAt;
+
+        /**
+         * @param release true to release the network thread while waiting for the response
+         */
+        Operation(boolean release) {
+            this.release = release;
+        }
+
+        abstract void failed(Exception ex);
+
+        public void run() {
+            boolean pending = false;
+            Exception failure = null;
+            try {
+                if(sent == null) {
+                    if(rejected != null) {
+                        throw rejected;
+                    }
+                    startedAt = System.nanoTime();
+                    try {
+                        sent = beginOperation();
+                    } finally {
+                        measured = metrics;
+                    }
+                    if(release && sent != null && !sent.send().isDone()) {
+                        pending = true;
+                        sent.send().whenComplete(new BiConsumer<Void, Throwable>() {
+                            public void accept(Void v, Throwable err) {
+                                dispatch(getQueueExecutor(), Operation.this);
+                            }
+                        });
+                        return;
+                    }
+                }
+                finishOperation(sent);
+            } catch(Exception ex) {
+                failure = ex;
+                if(!retryOnFailure(0, ex, 0)) {
+                    failed(ex);
+                }
+            } finally {
+                if(!pending) {
+                    releasePermit(failure);
+                    completeMetrics(measured, failure);
+                    fireCompletionListeners(currentAttempt);
+                }
+            }
+        }
+
+        /**
+         * Reports the outcome to the endpoint guard, connection failures and overload responses
+         * count against the host while a killed request says nothing about it
+         */
+        private void releasePermit(Exception failure) {
+            EndpointGuard.Permit p = permit;
+            if(p == null) {
+                return;
+            }
+            permit = null;
+            long latency = System.nanoTime() - startedAt;
+            if((sent == null && failure == null) || isKilled()) {
+                p.ignore();
+            } else if(failure instanceof IOException || (failure == null && (responseCode == 429 || responseCode >= 500))) {
+                p.failure(latency);
+            } else {
+                p.success(latency);
+            }
+        }
+    }
+
+    private void completeMetrics(RequestMetrics m, Exception failure) {
+        if(m == null || m.isCompleted()) {
+            return;
+        }
+        m.completed(System.nanoTime(), responseCode, failure);
+        for(RequestMetrics.Listener l : metricsListeners) {
+            try {
+                l.requestCompleted(m);
+            } catch(RuntimeException ex) {
+                Log.e(ex);
+            }
+        }
+    }
+
+    /**
+     * Adds a listener notified with the timings of every attempt of every request once it's done
+     *
+     * @param l the listener
+     */
+    public static void addMetricsListener(RequestMetrics.Listener l) {
+        metricsListeners.add(l);
+    }
+
+    /**
+     * Removes the given listener
+     *
+     * @param l the listener
+     */
+    public static void removeMetricsListener(RequestMetrics.Listener l) {
+        metricsListeners.remove(l);
+    }
+
+    /**
+     * The timings of the current or last attempt of this request or null if it didn't start
+     *
+     * @return the metrics
+     */
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
+    private Executor getQueueExecutor() {
+        return networkExecutor != null ? networkExecutor : getDefaultNetworkExecutor();
+    }
+
+    private void dispatch(Executor executor, Runnable r) {
+        if (executor instanceof NetworkDispatcher) {
+            ((NetworkDispatcher) executor).execute(r, getPriority());
         } else {
-            new Thread(r).start();
+            executor.execute(r);
         }
     }
 
+    /**
+     * The number of bytes of an unread response body, e.g. of an error or a redirect, that are
+     * read and discarded so the connection can be reused. Defaults to 64KB or the
+     * iap.responseDrainLimit system property.
+     *
+     * @return the drain limit
+     */
+    public static int getResponseDrainLimit() {
+        return responseDrainLimit;
+    }
+
+    /**
+     * The number of bytes of an unread response body that are read and discarded so the
+     * connection can be reused, 0 to close such connections
+     *
+     * @param limit the drain limit in bytes
+     */
+    public static void setResponseDrainLimit(int limit) {
+        responseDrainLimit = limit;
+    }
+
+    /**
+     * The read timeout of requests that don't set their own in milliseconds, 0 for none.
+     * Defaults to 60 seconds or the iap.readTimeout system property so a hung socket can't hold
+     * a network thread forever.
+     *
+     * @return the default read timeout
+     */
+    public static int getDefaultReadTimeout() {
+        return defaultReadTimeout;
+    }
+
+    /**
+     * The read timeout of requests that don't set their own in milliseconds, 0 for none
+     *
+     * @param readTimeout the default read timeout
+     */
+    public static void setDefaultReadTimeout(int readTimeout) {
+        defaultReadTimeout = readTimeout;
+    }
+
+    /**
+     * The transport carrying requests that have no transport of their own, a
+     * {@link HttpURLConnectionTransport} unless another one was set
+     *
+     * @return the default transport
+     */
+    public static Transport getDefaultTransport() {
+        return defaultTransport;
+    }
+
+    /**
+     * Sets the transport carrying requests that have no transport of their own
+     *
+     * @param transport the transport or null for a {@link HttpURLConnectionTransport}
+     */
+    public static void setDefaultTransport(Transport transport) {
+        defaultTransport = transport != null ? transport : new HttpURLConnectionTransport();
+    }
+
+    /**
+     * The transport carrying this request, the default transport unless one was set
+     *
+     * @return the transport
+     */
+    public Transport getTransport() {
+        return transport != null ? transport : defaultTransport;
+    }
+
+    /**
+     * The transport carrying this request or null for the default transport
+     *
+     * @param transport the transport to set
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * The executor running queued requests that have no network executor of their own, the
+     * {@link NetworkDispatcher#getShared() shared dispatcher} unless another one was set
+     *
+     * @return the default network executor
+     */
+    public static Executor getDefaultNetworkExecutor() {
+        Executor e = defaultNetworkExecutor;
+        return e != null ? e : NetworkDispatcher.getShared();
+    }
+
+    /**
+     * Sets the executor running queued requests that have no network executor of their own.
+     * A {@link NetworkDispatcher} honours the request priorities.
+     *
+     * @param executor the executor or null for the shared dispatcher
+     */
+    public static void setDefaultNetworkExecutor(Executor executor) {
+        defaultNetworkExecutor = executor;
+    }
+
+    /**
+     * The executor running this request when it's queued or null for the default network executor
+     *
+     * @return the networkExecutor
+     */
+    public Executor getNetworkExecutor() {
+        return networkExecutor;
+    }
+
+    /**
+     * The executor running this request when it's queued or null for the default network
+     * executor. {@link #addToQueueAndWait()} runs the request on the calling thread unless an
+     * executor is set.
+     *
+     * @param networkExecutor the networkExecutor to set
+     */
+    public void setNetworkExecutor(Executor networkExecutor) {
+        this.networkExecutor = networkExecutor;
+    }
+
+    /**
+     * The executor running {@link #postResponse()} and the error handling callbacks or null to
+     * run them on the network thread
+     *
+     * @return the mainExecutor
+     */
+    public Executor getMainExecutor() {
+        return mainExecutor;
+    }
+
+    /**
+     * The executor running {@link #postResponse()} and the error handling callbacks or null to
+     * run them on the network thread
+     *
+     * @param mainExecutor the mainExecutor to set
+     */
+    public void setMainExecutor(Executor mainExecutor) {
+        this.mainExecutor = mainExecutor;
+    }
+
     /**
      * This is a callback method that been called when there is a redirect.
      * <strong>IMPORTANT</strong>
@@ -1357,6 +2108,10 @@ public class ConnectionRequest {
      */
     public void kill() {
         killed = true;
+        Transport.Connection c = activeConnection;
+        if(c != null) {
+            c.close();
+        }
         //if the connection is in the midle of a reading, stop it to release the 
         //resources
         if(input != null && input instanceof BufferedInputStream) {
@@ -1762,6 +2517,58 @@ public class ConnectionRequest {
         this.timeout = timeout;
     }
 
+    /**
+     * The time in milliseconds the connection may stay silent while the response is read, -1 for
+     * the default read timeout
+     *
+     * @return the readTimeout
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * The time in milliseconds the connection may stay silent while the response is read before
+     * the request fails with a {@link java.net.SocketTimeoutException}
+     *
+     * @param readTimeout the read timeout or -1 for {@link #getDefaultReadTimeout()}
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * The time by which this request must be done in milliseconds since the epoch, 0 for none
+     *
+     * @return the deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Bounds the request and its retries by a deadline. Every attempt gets the time left as its
+     * connect and read timeouts, no retry is scheduled that would start after the deadline and an
+     * attempt starting after it fails with a {@link DeadlineExceededException} without
+     * connecting.
+     *
+     * @param deadline the time in milliseconds since the epoch or 0 for none
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Thrown when a request with a deadline is attempted after the deadline passed
+     */
+    public static class DeadlineExceededException extends SocketTimeoutException {
+        private static final long serialVersionUID = 1L;
+
+        public DeadlineExceededException() {
+            super("Deadline exceeded");
+        }
+    }
+
     /**
      * This method prevents a manual timeout from occurring when invoked at a frequency faster
      * than the timeout.
@@ -1874,6 +2681,53 @@ public class ConnectionRequest {
         //}
     }
 
+    private List<ActionListener> completionListeners;
+
+    /**
+     * Adds a listener that is notified once the request has finished processing regardless of
+     * whether it succeeded, failed or was killed. Unlike the response listener this is invoked
+     * even when no response body was read (e.g. a connection failure), which makes it the place
+     * to complete asynchronous callers. It isn't invoked for an attempt that scheduled a retry.
+     *
+     * @param a listener receiving a {@link NetworkEvent#PROGRESS_TYPE_COMPLETED} event
+     */
+    public void addCompletionListener(ActionListener<NetworkEvent> a) {
+        if(completionListeners == null) {
+            completionListeners = new ArrayList<ActionListener>();
+        }
+        completionListeners.add(a);
+    }
+
+    /**
+     * Removes the given listener
+     *
+     * @param a listener
+     */
+    public void removeCompletionListener(ActionListener<NetworkEvent> a) {
+        if(completionListeners == null) {
+            return;
+        }
+        completionListeners.remove(a);
+    }
+
+    private void fireCompletionListeners(int startAttempt) {
+        if(startAttempt != attempt) {
+            return;
+        }
+        try {
+            if(completionListeners != null) {
+                fireActionEvent(completionListeners, new NetworkEvent(this, NetworkEvent.PROGRESS_TYPE_COMPLETED));
+            }
+        } finally {
+            CompletableFuture<ConnectionRequest> done = getCompletion();
+            if(failureException != null) {
+                done.completeExceptionally(failureException);
+            } else {
+                done.complete(this);
+            }
+        }
+    }
+
     /**
      * Returns true if someone is listening to action response events, this is useful
      * so we can decide whether to bother collecting data for an event in some cases
@@ -1892,7 +2746,12 @@ public class ConnectionRequest {
      */
     protected void fireResponseListener(ActionEvent ev) {
         if(actionListeners != null) {
+            long start = System.nanoTime();
             fireActionEvent(actionListeners, ev);
+            RequestMetrics m = metrics;
+            if(m != null) {
+                m.addDispatch(System.nanoTime() - start);
+            }
         }
     }
 
@@ -2029,6 +2888,22 @@ public class ConnectionRequest {
         //Util.getImplementation(this).setUseNativeCookieStore(b);
     }
 
+    /**
+     * The exception that failed this request when it is set to fail silently
+     * @return the failure exception or null
+     */
+    public Exception getFailureException() {
+        return failureException;
+    }
+
+    /**
+     * The error response code recorded when this request is set to fail silently
+     * @return the failure error code or 0
+     */
+    public int getFailureErrorCode() {
+        return failureErrorCode;
+    }
+
     /**
      * When set to true the read response code will happen even for error codes such as 400 and 500
      * @return the readResponseForErrors
@@ -2170,53 +3045,92 @@ public class ConnectionRequest {
     }
     
     
+    /**
+     * Adds the request to the queue and blocks until it's done. The request runs on the calling
+     * thread unless a network executor is set. If the waiting thread is interrupted the request
+     * is killed and the interrupt status is kept.
+     */
     public void addToQueueAndWait() {
-        boolean[] complete = new boolean[1];
-        final Runnable run = new Runnable() {
-            public void run() {
-                    
-                    try {
-                        performOperation(); 
-                    } catch(IOException e) {
-                        if(!isFailSilently()) {
-                            if(!handleException(ConnectionRequest.this, e)) {
-                                handleIOException(e);
-                            }
-                        } else {
-                            // for the record
-                            e.printStackTrace();
-                        }
-                    } catch(RuntimeException er) {
-                        if(!isFailSilently()) {
-                            if(!handleException(ConnectionRequest.this, er)) {
-                                handleRuntimeException(er);
-                            }
-                        } else {
-                            // for the record
-                            er.printStackTrace();
+        try {
+            addToQueueAndWait(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the request to the queue and blocks until it's done or the timeout elapses, in which
+     * case the request is killed. With a timeout the request runs on the network executor, or the
+     * default network executor if none is set, so the wait can be abandoned.
+     *
+     * @param timeout the maximum time to wait or 0 to wait until the request is done
+     * @param unit the unit of the timeout
+     * @return true if the request is done, false if the timeout elapsed
+     * @throws InterruptedException if the waiting thread was interrupted, the request is killed
+     */
+    public boolean addToQueueAndWait(long timeout, TimeUnit unit) throws InterruptedException {
+        final CompletableFuture<ConnectionRequest> done = resetCompletion();
+        queued();
+        queuedAt = System.nanoTime();
+        Executor executor = networkExecutor != null || timeout <= 0 ? networkExecutor : getDefaultNetworkExecutor();
+        final Operation run = new Operation(executor != null) {
+            void failed(Exception ex) {
+                if(ex instanceof IOException) {
+                    IOException e = (IOException)ex;
+                    if(!isFailSilently()) {
+                        if(!handleException(ConnectionRequest.this, e)) {
+                            handleIOException(e);
                         }
-                    
-                    } finally {
-                        synchronized (complete) {
-                            complete[0] = true;
-                            complete.notifyAll();
+                    } else {
+                        // for the record
+                        e.printStackTrace();
+                        failureException = e;
+                    }
+                } else if(ex instanceof RuntimeException) {
+                    RuntimeException er = (RuntimeException)ex;
+                    if(!isFailSilently()) {
+                        if(!handleException(ConnectionRequest.this, er)) {
+                            handleRuntimeException(er);
                         }
+                    } else {
+                        // for the record
+                        er.printStackTrace();
+                        failureException = er;
                     }
                 }
+            }
         };
-        
-        if (networkExecutor == null) {
-           run.run();
+
+        if (executor == null) {
+            try {
+                admitInline(run);
+            } catch (InterruptedException ex) {
+                kill();
+                throw ex;
+            }
+            run.run();
+            if (done.isDone()) {
+                return true;
+            }
+            // a retry or a redirect continues on the network executor
         } else {
-            
-            networkExecutor.execute(run);
-            synchronized(complete) {
-                while (!complete[0]) {
-                    try {
-                        complete.wait(100);
-                    } catch (Exception ex){}
-                }
+            admit(executor, run);
+        }
+        try {
+            if (timeout > 0) {
+                done.get(timeout, unit);
+            } else {
+                done.get();
             }
+        } catch (ExecutionException ex) {
+            // the failure is reported by the request itself
+        } catch (TimeoutException ex) {
+            kill();
+            return false;
+        } catch (InterruptedException ex) {
+            kill();
+            throw ex;
         }
+        return true;
     }
 }
@@ -0,0 +1,152 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Protects a host with a {@link CircuitBreaker} and a {@link ConcurrencyLimiter}. Requests with a
+ * guard are admitted before they take a network thread so a slow store holds at most its limit of
+ * threads and the requests of other stores keep flowing.
+ *
+ * @see ConnectionRequest#setEndpointGuard(EndpointGuard)
+ */
+public class EndpointGuard {
+
+    private static final ConcurrentMap<String, EndpointGuard> guards = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final CircuitBreaker breaker;
+    private final ConcurrencyLimiter limiter;
+
+    /**
+     * Thrown when a guard or a {@link RateLimiter} sheds a request without sending it
+     */
+    public static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedException(String message) {
+            super(message);
+        }
+    }
+
+    public EndpointGuard(String host, CircuitBreaker breaker, ConcurrencyLimiter limiter) {
+        this.host = host;
+        this.breaker = breaker;
+        this.limiter = limiter;
+    }
+
+    /**
+     * Returns the shared guard of the host, creating it with the default breaker and limiter
+     *
+     * @param host the host
+     * @return the guard
+     */
+    public static EndpointGuard forHost(String host) {
+        EndpointGuard g = guards.get(host);
+        if (g == null) {
+            guards.putIfAbsent(host, new EndpointGuard(host, new CircuitBreaker(), new ConcurrencyLimiter()));
+            g = guards.get(host);
+        }
+        return g;
+    }
+
+    /**
+     * Returns the shared guard of the host of the url
+     *
+     * @param url the url
+     * @return the guard
+     */
+    public static EndpointGuard forUrl(String url) {
+        try {
+            return forHost(new URL(url).getHost());
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    /**
+     * The shared guards by host
+     */
+    public static Map<String, EndpointGuard> getGuards() {
+        return Collections.unmodifiableMap(guards);
+    }
+
+    /**
+     * Admits a call once the breaker is closed and the limiter has a slot
+     *
+     * @return a future completing with the permit of the call or exceptionally with a
+     * {@link RejectedException}
+     */
+    CompletableFuture<Permit> acquire() {
+        final CompletableFuture<Permit> out = new CompletableFuture<>();
+        if (!breaker.tryAcquire()) {
+            out.completeExceptionally(new RejectedException("Circuit open for " + host));
+            return out;
+        }
+        limiter.acquire().whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void v, Throwable err) {
+                if (err != null) {
+                    breaker.onIgnore();
+                    out.completeExceptionally(err instanceof CompletionException ? err.getCause() : err);
+                } else {
+                    out.complete(new Permit());
+                }
+            }
+        });
+        return out;
+    }
+
+    /**
+     * An admitted call, released exactly once with its outcome
+     */
+    class Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void success(long latencyNanos) {
+            if (released.compareAndSet(false, true)) {
+                breaker.onSuccess();
+                limiter.release(latencyNanos, false);
+            }
+        }
+
+        void failure(long latencyNanos) {
+            if (released.compareAndSet(false, true)) {
+                breaker.onFailure();
+                limiter.release(latencyNanos, true);
+            }
+        }
+
+        void ignore() {
+            if (released.compareAndSet(false, true)) {
+                breaker.onIgnore();
+                limiter.release();
+            }
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public String toString() {
+        return host + " [" + breaker + ", " + limiter + "]";
+    }
+}
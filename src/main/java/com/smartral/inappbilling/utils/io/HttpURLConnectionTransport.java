@@ -0,0 +1,309 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * The default transport, each exchange blocks its thread on a {@link HttpURLConnection}. The JDK
+ * keeps the sockets of fully read responses alive for reuse, for https hosts the transport counts
+ * how many exchanges opened a new connection and how many reused one.
+ */
+public class HttpURLConnectionTransport implements Transport {
+
+    private static final CompletableFuture<Void> SENT = CompletableFuture.completedFuture(null);
+
+    private final ConcurrentMap<String, HostStats> hostStats = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SSLSocketFactory, CountingSocketFactory> factories = new ConcurrentHashMap<>();
+
+    /**
+     * Connection counters of a host
+     */
+    public static class HostStats {
+        private final AtomicLong exchanges = new AtomicLong();
+        private final AtomicLong newConnections = new AtomicLong();
+
+        /**
+         * The number of exchanges that received a response
+         */
+        public long getExchanges() {
+            return exchanges.get();
+        }
+
+        /**
+         * The number of connections opened, each one costs a TLS handshake
+         */
+        public long getNewConnections() {
+            return newConnections.get();
+        }
+
+        /**
+         * The number of exchanges that were sent over a kept alive connection
+         */
+        public long getReusedConnections() {
+            return Math.max(0, exchanges.get() - newConnections.get());
+        }
+
+        @Override
+        public String toString() {
+            return "exchanges=" + getExchanges() + ", new=" + getNewConnections() + ", reused=" + getReusedConnections();
+        }
+    }
+
+    /**
+     * The connection counters of the https hosts this transport talked to, keyed by host with
+     * the port unless it's 443
+     *
+     * @return the counters by host
+     */
+    public Map<String, HostStats> getHostStats() {
+        return Collections.unmodifiableMap(hostStats);
+    }
+
+    private HostStats stats(String host, int port) {
+        String key = port == 443 || port < 0 ? host : host + ":" + port;
+        HostStats s = hostStats.get(key);
+        if (s == null) {
+            hostStats.putIfAbsent(key, new HostStats());
+            s = hostStats.get(key);
+        }
+        return s;
+    }
+
+    @Override
+    public Connection open(String url, boolean doInput, boolean doOutput, int connectTimeout) throws IOException {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setDoInput(doInput);
+            conn.setDoOutput(doOutput);
+            conn.setConnectTimeout(connectTimeout);
+            HostStats stats = null;
+            if (conn instanceof HttpsURLConnection) {
+                HttpsURLConnection https = (HttpsURLConnection) conn;
+                // the keep alive cache matches connections by factory so the wrapper is shared
+                SSLSocketFactory f = https.getSSLSocketFactory();
+                CountingSocketFactory counting = factories.get(f);
+                if (counting == null) {
+                    factories.putIfAbsent(f, new CountingSocketFactory(f));
+                    counting = factories.get(f);
+                }
+                https.setSSLSocketFactory(counting);
+                stats = stats(conn.getURL().getHost(), conn.getURL().getPort());
+            }
+            return new URLConnection(conn, stats);
+        } catch (MalformedURLException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Counts the TLS connections the JDK opens. Unconnected sockets aren't supported so the
+     * connection layers TLS over a plain socket and the host is known.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            stats(host, port).newConnections.incrementAndGet();
+            return delegate.createSocket(s, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            stats(host, port).newConnections.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            stats(host, port).newConnections.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            stats(host.getHostName(), port).newConnections.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            stats(address.getHostName(), port).newConnections.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    private static class URLConnection implements Connection {
+        private final HttpURLConnection c;
+        private HostStats stats;
+        private volatile boolean drained;
+
+        URLConnection(HttpURLConnection c, HostStats stats) {
+            this.c = c;
+            this.stats = stats;
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws IOException {
+            c.setRequestMethod(method);
+        }
+
+        @Override
+        public void addRequestHeader(String key, String value) {
+            c.addRequestProperty(key, value);
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunkLength) {
+            c.setChunkedStreamingMode(chunkLength);
+        }
+
+        @Override
+        public void setReadTimeout(int readTimeout) {
+            c.setReadTimeout(readTimeout);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            c.connect();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return c.getOutputStream();
+        }
+
+        @Override
+        public CompletableFuture<Void> send() {
+            return SENT;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            int code = c.getResponseCode();
+            if (stats != null) {
+                stats.exchanges.incrementAndGet();
+                stats = null;
+            }
+            return code;
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return c.getResponseMessage();
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            // HttpURLConnection lists the values of a header last first, restore the received order
+            Map<String, List<String>> fields = c.getHeaderFields();
+            Map<String, List<String>> out = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> e : fields.entrySet()) {
+                List<String> values = new ArrayList<>(e.getValue());
+                Collections.reverse(values);
+                out.put(e.getKey(), values);
+            }
+            return out;
+        }
+
+        @Override
+        public int getContentLength() {
+            return c.getContentLength();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream in = getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+            return in == null ? null : new DrainingInputStream(in, c.getContentLength());
+        }
+
+        @Override
+        public void close() {
+            // the JDK hands the socket of a fully read response to the next exchange so it must
+            // not be touched then, any other socket is closed which also aborts an exchange that
+            // is still blocked on the network, e.g. when the request is killed
+            if (!drained) {
+                c.disconnect();
+            }
+        }
+
+        /**
+         * Notices when the response body was read to its end
+         */
+        private class DrainingInputStream extends FilterInputStream {
+            private final long length;
+            private long read;
+
+            DrainingInputStream(InputStream in, long length) {
+                super(in);
+                this.length = length;
+                if (length == 0) {
+                    drained = true;
+                }
+            }
+
+            private int count(int n) {
+                if (n < 0) {
+                    drained = true;
+                } else {
+                    read += n;
+                    if (length > 0 && read >= length) {
+                        drained = true;
+                    }
+                }
+                return n;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                count(b < 0 ? -1 : 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return count(super.read(b, off, len));
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count((int) Math.min(skipped, Integer.MAX_VALUE));
+                return skipped;
+            }
+        }
+    }
+}
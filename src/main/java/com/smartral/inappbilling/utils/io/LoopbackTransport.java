@@ -0,0 +1,204 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport answering requests from memory with the handler registered for the longest
+ * matching url prefix. It lets the validators run against canned store responses without
+ * network access.
+ */
+public class LoopbackTransport implements Transport {
+
+    private final Map<String, Handler> handlers = new LinkedHashMap<>();
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    /**
+     * Answers a request
+     */
+    public interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    /**
+     * The request as it was sent
+     */
+    public static class Request {
+        private final String method;
+        private final String url;
+        private final Map<String, List<String>> headers;
+        private final byte[] body;
+        private final AtomicBoolean closed;
+
+        Request(String method, String url, Map<String, List<String>> headers, byte[] body, AtomicBoolean closed) {
+            this.method = method;
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.closed = closed;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        /**
+         * Returns the first header with the given name ignoring case or null
+         */
+        public String getHeader(String name) {
+            for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+                if (e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty()) {
+                    return e.getValue().get(0);
+                }
+            }
+            return null;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * Indicates whether the client closed the connection, e.g. because the request was
+         * killed, so a handler taking its time can tell the client hung up
+         */
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        public String getBodyAsString() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    /**
+     * The response to return
+     */
+    public static class Response {
+        private final int code;
+        private final String message;
+        private final byte[] body;
+        private final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+        public Response(int code, String message, byte[] body) {
+            this.code = code;
+            this.message = message;
+            this.body = body == null ? new byte[0] : body;
+        }
+
+        /**
+         * A UTF-8 encoded JSON response
+         */
+        public Response(int code, String json) {
+            this(code, code < 400 ? "OK" : "Error", toBytes(json));
+            addHeader("Content-Type", "application/json; charset=utf-8");
+        }
+
+        private static byte[] toBytes(String s) {
+            try {
+                return s == null ? null : s.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        public Response addHeader(String key, String value) {
+            List<String> values = headers.get(key);
+            if (values == null) {
+                values = new ArrayList<>();
+                headers.put(key, values);
+            }
+            values.add(value);
+            return this;
+        }
+    }
+
+    /**
+     * Answers the requests whose url starts with the prefix
+     *
+     * @param urlPrefix the url prefix
+     * @param handler the handler or null to remove the handler of the prefix
+     */
+    public synchronized void register(String urlPrefix, Handler handler) {
+        if (handler == null) {
+            handlers.remove(urlPrefix);
+        } else {
+            handlers.put(urlPrefix, handler);
+        }
+    }
+
+    /**
+     * The number of requests sent through this transport
+     */
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    private synchronized Handler getHandler(String url) {
+        Handler out = null;
+        int longest = -1;
+        for (Map.Entry<String, Handler> e : handlers.entrySet()) {
+            if (url.startsWith(e.getKey()) && e.getKey().length() > longest) {
+                out = e.getValue();
+                longest = e.getKey().length();
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public Connection open(String url, boolean doInput, boolean doOutput, int connectTimeout) throws IOException {
+        final AtomicBoolean closed = new AtomicBoolean();
+        return new BufferedTransportConnection(url, doOutput) {
+            @Override
+            protected void exchange() {
+                requestCount.incrementAndGet();
+                try {
+                    Handler handler = getHandler(url.toString());
+                    if (handler == null) {
+                        throw new ConnectException("No loopback handler for " + url);
+                    }
+                    Response r = handler.handle(new Request(getRequestMethod(), url.toString(), requestHeaders, requestBody.toByteArray(), closed));
+                    responseCode = r.code;
+                    responseMessage = r.message;
+                    addResponseHeader(null, "HTTP/1.1 " + r.code + " " + r.message);
+                    for (Map.Entry<String, List<String>> e : r.headers.entrySet()) {
+                        for (String v : e.getValue()) {
+                            addResponseHeader(e.getKey(), v);
+                        }
+                    }
+                    addResponseHeader("Content-Length", String.valueOf(r.body.length));
+                    responseBody = r.body;
+                    response.complete(null);
+                } catch (IOException | RuntimeException ex) {
+                    response.completeExceptionally(ex);
+                }
+            }
+
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+    }
+}
@@ -0,0 +1,175 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs connection requests on a bounded pool of network threads. Requests waiting for a thread
+ * are queued by their {@link ConnectionRequest#getPriority() priority}, requests of the same
+ * priority in the order they were queued.
+ *
+ * <p>A shared dispatcher is used by every {@link ConnectionRequest} that has no network executor
+ * of its own. Its size defaults to the {@code iap.networkThreads} system property or 32.</p>
+ */
+public class NetworkDispatcher implements Executor {
+
+    private static volatile NetworkDispatcher shared;
+
+    private final ThreadPoolExecutor pool;
+    private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong maxWait = new AtomicLong();
+
+    /**
+     * A queued runnable with its priority
+     */
+    private class Task implements Runnable, Comparable<Task> {
+        private final Runnable runnable;
+        private final byte priority;
+        private final long seq = sequence.getAndIncrement();
+        private final long queuedAt = System.nanoTime();
+
+        Task(Runnable runnable, byte priority) {
+            this.runnable = runnable;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            long wait = (System.nanoTime() - queuedAt) / 1000000L;
+            dispatched.incrementAndGet();
+            totalWait.addAndGet(wait);
+            long max = maxWait.get();
+            while (wait > max && !maxWait.compareAndSet(max, wait)) {
+                max = maxWait.get();
+            }
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (priority != o.priority) {
+                return o.priority - priority;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+
+    /**
+     * @param threads the maximum number of requests running at once
+     */
+    public NetworkDispatcher(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one network thread is required");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Network-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the dispatcher used by requests that have no network executor of their own
+     */
+    public static NetworkDispatcher getShared() {
+        NetworkDispatcher d = shared;
+        if (d == null) {
+            synchronized (NetworkDispatcher.class) {
+                d = shared;
+                if (d == null) {
+                    d = new NetworkDispatcher(Integer.getInteger("iap.networkThreads", 32));
+                    shared = d;
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Runs the runnable with normal priority
+     */
+    @Override
+    public void execute(Runnable r) {
+        execute(r, ConnectionRequest.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Runs the runnable once a network thread is available and no request of higher priority is
+     * waiting
+     *
+     * @param r the runnable
+     * @param priority one of the ConnectionRequest priority constants
+     */
+    public void execute(Runnable r, byte priority) {
+        pool.execute(new Task(r, priority));
+    }
+
+    /**
+     * Changes the maximum number of requests running at once
+     */
+    public void setThreads(int threads) {
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * The number of requests waiting for a network thread
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * The number of requests currently running
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * The number of requests that were started
+     */
+    public long getDispatchedCount() {
+        return dispatched.get();
+    }
+
+    /**
+     * The average time in milliseconds requests waited for a network thread
+     */
+    public long getAverageQueueWait() {
+        long n = dispatched.get();
+        return n == 0 ? 0 : totalWait.get() / n;
+    }
+
+    /**
+     * The longest time in milliseconds a request waited for a network thread
+     */
+    public long getMaxQueueWait() {
+        return maxWait.get();
+    }
+
+    /**
+     * Stops the network threads once the queued requests are done
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -58,6 +58,7 @@ public class NetworkEvent extends ActionEvent {
     private int received;
     private Object metaData;
     private String message;
+    private RequestMetrics metrics;
 
     /**
      * Constructs an event for an error message
@@ -68,6 +69,9 @@ public class NetworkEvent extends ActionEvent {
     public NetworkEvent(ConnectionRequest source, Exception error) {
         super(source,ActionEvent.Type.Exception);
         this.error = error;
+        if(source != null) {
+            this.metrics = source.getMetrics();
+        }
     }
 
     /**
@@ -81,6 +85,9 @@ public class NetworkEvent extends ActionEvent {
         super(request,ActionEvent.Type.Response);
         this.progressType = responseCode;
         this.message = message;
+        if(request != null) {
+            this.metrics = request.getMetrics();
+        }
     }
 
     /**
@@ -93,6 +100,9 @@ public class NetworkEvent extends ActionEvent {
     public NetworkEvent(ConnectionRequest request, int progressType) {
         super(request,ActionEvent.Type.Progress);
         this.progressType = progressType;
+        if(request != null) {
+            this.metrics = request.getMetrics();
+        }
     }
 
     /**
@@ -105,6 +115,7 @@ public class NetworkEvent extends ActionEvent {
         super(request,ActionEvent.Type.Data);
         if(request != null){
             this.progressType = request.getResponseCode();
+            this.metrics = request.getMetrics();
         }
         this.metaData = metaData;
     }
@@ -204,6 +215,16 @@ public class NetworkEvent extends ActionEvent {
         return metaData;
     }
 
+    /**
+     * The timings of the request attempt this event belongs to, they are complete for the
+     * {@link #PROGRESS_TYPE_COMPLETED} event
+     *
+     * @return the metrics or null
+     */
+    public RequestMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * @return the message
      */
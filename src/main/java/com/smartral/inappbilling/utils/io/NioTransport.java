@@ -0,0 +1,618 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A non blocking transport. Exchanges run on a few selector threads with {@link SSLEngine} for
+ * https, no thread waits while a request is on the network. Requests are sent with their length
+ * and responses are read completely before {@link Transport.Connection#send()} completes.
+ *
+ * <p>This transport is experimental and not meant for production traffic, which should stay on
+ * the default {@link HttpURLConnectionTransport}. Every exchange resolves the host, opens its own
+ * connection with a full TLS handshake and sends {@code Connection: close}, so it never reuses a
+ * connection. The whole response body is buffered in memory before it can be read, so the
+ * response parsers can't stream it. It suits tests and low volume tools that need many requests
+ * in flight on few threads.</p>
+ */
+public class NioTransport implements Transport {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile SSLContext sslContext;
+    private volatile int responseTimeout = 60000;
+
+    /**
+     * Creates a transport with two selector threads
+     */
+    public NioTransport() {
+        this(2);
+    }
+
+    /**
+     * @param selectorThreads the number of selector threads
+     */
+    public NioTransport(int selectorThreads) {
+        if (selectorThreads < 1) {
+            throw new IllegalArgumentException("At least one selector thread is required");
+        }
+        loops = new Loop[selectorThreads];
+    }
+
+    /**
+     * The SSL context of https connections, the default context unless set
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * The time in milliseconds a connection may stay silent while waiting for the response
+     * before the exchange fails, 0 for no limit. Defaults to 60 seconds, a read timeout set on the
+     * connection takes precedence.
+     */
+    public void setResponseTimeout(int responseTimeout) {
+        this.responseTimeout = responseTimeout;
+    }
+
+    private synchronized Loop nextLoop() throws IOException {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+        if (loops[i] == null) {
+            loops[i] = new Loop(Selector.open());
+            Thread t = new Thread(loops[i], "NioTransport-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+        return loops[i];
+    }
+
+    @Override
+    public Connection open(String url, boolean doInput, boolean doOutput, int connectTimeout) throws IOException {
+        return new NioConnection(url, doOutput, connectTimeout);
+    }
+
+    /**
+     * A selector thread running the exchanges registered with it
+     */
+    private static class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> pending = new ConcurrentLinkedQueue<>();
+
+        Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void submit(NioConnection c) {
+            pending.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(100);
+                    NioConnection c;
+                    while ((c = pending.poll()) != null) {
+                        c.register(selector);
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid()) {
+                            ((NioConnection) key.attachment()).handle();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid()) {
+                            ((NioConnection) key.attachment()).checkTimeout(now);
+                        }
+                    }
+                } catch (Throwable t) {
+                    Log.e(t);
+                }
+            }
+        }
+    }
+
+    private class NioConnection extends BufferedTransportConnection {
+        private static final int HEAD = 0;
+        private static final int FIXED = 1;
+        private static final int UNTIL_CLOSE = 2;
+        private static final int CHUNK_SIZE = 3;
+        private static final int CHUNK_DATA = 4;
+        private static final int CHUNK_END = 5;
+        private static final int TRAILER = 6;
+
+        private final int connectTimeout;
+        private volatile int readTimeout = responseTimeout;
+        private InetSocketAddress address;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        private ByteBuffer request;
+        private ByteBuffer netOut;
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private volatile boolean done;
+        private boolean connected;
+        private long connectDeadline;
+        private long lastActivity;
+
+        private int state = HEAD;
+        private int tail;
+        private long remaining;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final StringBuilder line = new StringBuilder();
+
+        NioConnection(String url, boolean doOutput, int connectTimeout) {
+            super(url, doOutput);
+            this.connectTimeout = connectTimeout;
+        }
+
+        @Override
+        public void setReadTimeout(int readTimeout) {
+            this.readTimeout = readTimeout;
+        }
+
+        @Override
+        protected void exchange() {
+            try {
+                boolean https = "https".equalsIgnoreCase(url.getProtocol());
+                int port = url.getPort() > -1 ? url.getPort() : url.getDefaultPort();
+                address = new InetSocketAddress(url.getHost(), port);
+                if (address.isUnresolved()) {
+                    throw new UnknownHostException(url.getHost());
+                }
+                if (https) {
+                    SSLContext ctx = sslContext != null ? sslContext : SSLContext.getDefault();
+                    engine = ctx.createSSLEngine(url.getHost(), port);
+                    engine.setUseClientMode(true);
+                    SSLParameters params = engine.getSSLParameters();
+                    params.setEndpointIdentificationAlgorithm("HTTPS");
+                    try {
+                        params.setServerNames(Collections.singletonList(new SNIHostName(url.getHost())));
+                    } catch (IllegalArgumentException ex) {
+                        // ip addresses have no server name
+                    }
+                    engine.setSSLParameters(params);
+                    netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                } else {
+                    appIn = ByteBuffer.allocate(16384);
+                }
+                request = ByteBuffer.wrap(buildRequest(port, https));
+                nextLoop().submit(this);
+            } catch (IOException | NoSuchAlgorithmException | RuntimeException ex) {
+                fail(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+            }
+        }
+
+        private byte[] buildRequest(int port, boolean https) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            String path = url.getFile();
+            sb.append(getRequestMethod()).append(' ').append(path.length() == 0 ? "/" : path).append(" HTTP/1.1\r\n");
+            sb.append("Host: ").append(url.getHost());
+            if (port != (https ? 443 : 80)) {
+                sb.append(':').append(port);
+            }
+            sb.append("\r\n");
+            for (Map.Entry<String, List<String>> e : requestHeaders.entrySet()) {
+                String k = e.getKey();
+                if (k.equalsIgnoreCase("Host") || k.equalsIgnoreCase("Content-Length") || k.equalsIgnoreCase("Connection")) {
+                    continue;
+                }
+                for (String v : e.getValue()) {
+                    sb.append(k).append(": ").append(v).append("\r\n");
+                }
+            }
+            byte[] b = requestBody.toByteArray();
+            if (b.length > 0 || doOutput) {
+                sb.append("Content-Length: ").append(b.length).append("\r\n");
+            }
+            sb.append("Connection: close\r\n\r\n");
+            byte[] h = sb.toString().getBytes("ISO-8859-1");
+            byte[] out = new byte[h.length + b.length];
+            System.arraycopy(h, 0, out, 0, h.length);
+            System.arraycopy(b, 0, out, h.length, b.length);
+            return out;
+        }
+
+        void register(Selector selector) {
+            if (done) {
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                lastActivity = System.currentTimeMillis();
+                connectDeadline = connectTimeout > 0 ? lastActivity + connectTimeout : Long.MAX_VALUE;
+                if (channel.connect(address)) {
+                    connected();
+                }
+            } catch (IOException | RuntimeException ex) {
+                fail(ex instanceof IOException ? (IOException) ex : new IOException(ex));
+            }
+        }
+
+        void handle() {
+            try {
+                if (!connected && key.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                } else {
+                    pump();
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            } catch (RuntimeException ex) {
+                fail(new IOException(ex));
+            }
+        }
+
+        void checkTimeout(long now) {
+            if (done) {
+                return;
+            }
+            if (!connected) {
+                if (now > connectDeadline) {
+                    fail(new SocketTimeoutException("connect timed out"));
+                }
+            } else if (readTimeout > 0 && now - lastActivity > readTimeout) {
+                fail(new SocketTimeoutException("Read timed out"));
+            }
+        }
+
+        private void connected() throws IOException {
+            connected = true;
+            lastActivity = System.currentTimeMillis();
+            if (engine != null) {
+                engine.beginHandshake();
+            } else {
+                connectedAt = System.nanoTime();
+            }
+            pump();
+        }
+
+        private void interest(int ops) {
+            key.interestOps(ops);
+        }
+
+        private void pump() throws IOException {
+            if (engine == null) {
+                pumpPlain();
+            } else {
+                pumpTls();
+            }
+        }
+
+        private void pumpPlain() throws IOException {
+            while (!done) {
+                if (request.hasRemaining()) {
+                    channel.write(request);
+                    lastActivity = System.currentTimeMillis();
+                    if (request.hasRemaining()) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    requestSentAt = System.nanoTime();
+                    continue;
+                }
+                appIn.clear();
+                int n = channel.read(appIn);
+                if (n < 0) {
+                    eof();
+                    return;
+                }
+                if (n == 0) {
+                    interest(SelectionKey.OP_READ);
+                    return;
+                }
+                lastActivity = System.currentTimeMillis();
+                appIn.flip();
+                feed(appIn);
+            }
+        }
+
+        private void pumpTls() throws IOException {
+            while (!done) {
+                if (netOut.position() > 0) {
+                    if (!flush()) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    if (requestSentAt == 0 && connectedAt != 0 && !request.hasRemaining()) {
+                        requestSentAt = System.nanoTime();
+                    }
+                }
+                SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    continue;
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    continue;
+                }
+                if (hs != SSLEngineResult.HandshakeStatus.NEED_UNWRAP && request.hasRemaining()) {
+                    if (connectedAt == 0) {
+                        connectedAt = System.nanoTime();
+                    }
+                    wrap(request);
+                    continue;
+                }
+                if (!unwrap()) {
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        eof();
+                        return;
+                    }
+                    if (n == 0) {
+                        interest(SelectionKey.OP_READ);
+                        return;
+                    }
+                    lastActivity = System.currentTimeMillis();
+                }
+            }
+        }
+
+        /**
+         * Writes the pending TLS records, returns true if all of them were written
+         */
+        private boolean flush() throws IOException {
+            netOut.flip();
+            channel.write(netOut);
+            boolean flushed = !netOut.hasRemaining();
+            netOut.compact();
+            lastActivity = System.currentTimeMillis();
+            return flushed;
+        }
+
+        private void wrap(ByteBuffer src) throws IOException {
+            SSLEngineResult r = engine.wrap(src, netOut);
+            if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+            } else if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("The TLS session was closed while sending the request");
+            }
+        }
+
+        /**
+         * Decrypts the received TLS records, returns false if more data has to be read first
+         */
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            SSLEngineResult r;
+            try {
+                r = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (r.getStatus()) {
+                case OK:
+                    if (appIn.position() > 0) {
+                        appIn.flip();
+                        feed(appIn);
+                        appIn.clear();
+                    }
+                    return r.bytesConsumed() > 0 || r.bytesProduced() > 0;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    return true;
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                default:
+                    eof();
+                    return true;
+            }
+        }
+
+        private ByteBuffer grow(ByteBuffer b, int min) {
+            ByteBuffer out = ByteBuffer.allocate(Math.max(b.capacity() * 2, min));
+            b.flip();
+            out.put(b);
+            return out;
+        }
+
+        /**
+         * Parses the response bytes as they arrive
+         */
+        private void feed(ByteBuffer buf) throws IOException {
+            if (firstByteAt == 0 && buf.hasRemaining()) {
+                firstByteAt = System.nanoTime();
+            }
+            while (buf.hasRemaining() && !done) {
+                switch (state) {
+                    case HEAD: {
+                        byte b = buf.get();
+                        head.write(b);
+                        tail = (tail << 8) | (b & 0xff);
+                        if (tail == 0x0d0a0d0a || (tail & 0xffff) == 0x0a0a) {
+                            parseHead();
+                        }
+                        break;
+                    }
+                    case FIXED:
+                    case CHUNK_DATA: {
+                        int n = (int) Math.min(remaining, buf.remaining());
+                        body.write(buf.array(), buf.arrayOffset() + buf.position(), n);
+                        buf.position(buf.position() + n);
+                        remaining -= n;
+                        if (remaining == 0) {
+                            if (state == FIXED) {
+                                finish();
+                            } else {
+                                state = CHUNK_END;
+                            }
+                        }
+                        break;
+                    }
+                    case UNTIL_CLOSE:
+                        body.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                        buf.position(buf.limit());
+                        break;
+                    default: {
+                        char c = (char) (buf.get() & 0xff);
+                        if (c == '\n') {
+                            String l = line.toString().trim();
+                            line.setLength(0);
+                            chunkLine(l);
+                        } else if (c != '\r') {
+                            line.append(c);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void chunkLine(String l) throws IOException {
+            switch (state) {
+                case CHUNK_SIZE:
+                    if (l.length() == 0) {
+                        return;
+                    }
+                    int semi = l.indexOf(';');
+                    try {
+                        remaining = Long.parseLong((semi > -1 ? l.substring(0, semi) : l).trim(), 16);
+                    } catch (NumberFormatException ex) {
+                        throw new IOException("Malformed chunk size " + l);
+                    }
+                    state = remaining == 0 ? TRAILER : CHUNK_DATA;
+                    break;
+                case CHUNK_END:
+                    state = CHUNK_SIZE;
+                    break;
+                default:
+                    if (l.length() == 0) {
+                        finish();
+                    }
+            }
+        }
+
+        private void parseHead() throws IOException {
+            String[] lines = new String(head.toByteArray(), "ISO-8859-1").split("\r?\n");
+            head.reset();
+            tail = 0;
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line " + lines[0]);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed status line " + lines[0]);
+            }
+            if (code >= 100 && code < 200) {
+                // interim response, the final one follows
+                return;
+            }
+            responseCode = code;
+            responseMessage = status.length > 2 ? status[2] : "";
+            addResponseHeader(null, lines[0]);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    addResponseHeader(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+                }
+            }
+            String te = getResponseHeader("Transfer-Encoding");
+            String cl = getResponseHeader("Content-Length");
+            if ("HEAD".equals(getRequestMethod()) || code == 204 || code == 304) {
+                finish();
+            } else if (te != null && te.toLowerCase().contains("chunked")) {
+                state = CHUNK_SIZE;
+            } else if (cl != null) {
+                try {
+                    remaining = Long.parseLong(cl);
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Malformed content length " + cl);
+                }
+                state = FIXED;
+                if (remaining == 0) {
+                    finish();
+                }
+            } else {
+                state = UNTIL_CLOSE;
+            }
+        }
+
+        private void eof() throws IOException {
+            if (done) {
+                return;
+            }
+            if (state == UNTIL_CLOSE) {
+                finish();
+            } else {
+                throw new IOException("The connection was closed before the response was complete");
+            }
+        }
+
+        private void finish() {
+            done = true;
+            responseBody = body.toByteArray();
+            release();
+            response.complete(null);
+        }
+
+        private void fail(IOException ex) {
+            done = true;
+            release();
+            response.completeExceptionally(ex);
+        }
+
+        private void release() {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    // already closed
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!done) {
+                fail(new IOException("The connection was closed"));
+            }
+        }
+    }
+}
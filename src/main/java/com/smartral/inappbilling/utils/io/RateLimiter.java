@@ -0,0 +1,235 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Paces requests with a token bucket per key, e.g. per account and per application sharing a
+ * quota. A request takes a token from each of its buckets. When a bucket is empty the request
+ * reserves the next token and waits for it, it's only rejected if the wait would exceed the
+ * maximum wait. Requests are thus spread evenly instead of running into the quota in bursts.
+ * Buckets that refilled completely are dropped once there are too many, unless they have a rate
+ * of their own, since a new bucket would start out the same.
+ *
+ * @see ConnectionRequest#setRateLimiter(RateLimiter, String...)
+ */
+public class RateLimiter {
+
+    // in access order so the least recently used buckets are dropped first
+    private final Map<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxBuckets = 10000;
+    private double defaultRate;
+    private double defaultBurst;
+    private long maxWait = 1000;
+    private long delayed;
+    private long rejected;
+
+    /**
+     * A bucket refilling at a fixed rate up to its burst
+     */
+    public static class Bucket {
+        private double rate;
+        private double burst;
+        private double tokens;
+        private long refilledAt;
+        private boolean configured;
+
+        Bucket(double rate, double burst, long now) {
+            this.rate = rate;
+            this.burst = burst;
+            this.tokens = burst;
+            // the time the caller read, a later one would refill the full bucket backwards
+            this.refilledAt = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * rate);
+            refilledAt = now;
+        }
+
+        /**
+         * The time until a token is available in nanoseconds
+         */
+        private long waitNanos() {
+            return tokens >= 1 ? 0 : (long) ((1 - tokens) / rate * 1e9);
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public double getBurst() {
+            return burst;
+        }
+    }
+
+    /**
+     * @param defaultRate the tokens per second of buckets without a rate of their own
+     * @param defaultBurst the tokens a bucket without a rate of its own holds at most
+     */
+    public RateLimiter(double defaultRate, double defaultBurst) {
+        this.defaultRate = defaultRate;
+        this.defaultBurst = defaultBurst;
+    }
+
+    /**
+     * Sets the rate of a bucket, e.g. to match the quota of an account
+     *
+     * @param key the key of the bucket
+     * @param rate the tokens per second
+     * @param burst the tokens the bucket holds at most
+     */
+    public synchronized void setRate(String key, double rate, double burst) {
+        Bucket b = buckets.get(key);
+        long now = System.nanoTime();
+        if (b == null) {
+            b = new Bucket(rate, burst, now);
+            b.configured = true;
+            buckets.put(key, b);
+            return;
+        }
+        b.refill(now);
+        b.configured = true;
+        b.rate = rate;
+        b.burst = burst;
+        b.tokens = Math.min(b.tokens, burst);
+    }
+
+    private Bucket bucket(String key, long now) {
+        Bucket b = buckets.get(key);
+        if (b == null) {
+            if (buckets.size() >= maxBuckets) {
+                evictIdle(now);
+            }
+            b = new Bucket(defaultRate, defaultBurst, now);
+            buckets.put(key, b);
+        }
+        return b;
+    }
+
+    /**
+     * Drops the least recently used buckets without a rate of their own that refilled completely
+     * until there is room for a new one
+     */
+    private void evictIdle(long now) {
+        Iterator<Bucket> it = buckets.values().iterator();
+        while (it.hasNext() && buckets.size() >= maxBuckets) {
+            Bucket b = it.next();
+            if (!b.configured) {
+                b.refill(now);
+                if (b.tokens >= b.burst) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a token from the bucket of every key
+     *
+     * @param keys the keys of the buckets
+     * @return a future completing once the tokens are available or exceptionally with a
+     * {@link EndpointGuard.RejectedException} if that takes longer than the maximum wait
+     */
+    public CompletableFuture<Void> acquire(String... keys) {
+        final CompletableFuture<Void> out = new CompletableFuture<>();
+        long wait = 0;
+        synchronized (this) {
+            long now = System.nanoTime();
+            Bucket[] taken = new Bucket[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                Bucket b = bucket(keys[i], now);
+                b.refill(now);
+                wait = Math.max(wait, b.waitNanos());
+                taken[i] = b;
+            }
+            if (wait > maxWait * 1000000L) {
+                rejected++;
+                out.completeExceptionally(new EndpointGuard.RejectedException("Rate limit exceeded"));
+                return out;
+            }
+            // reserve the tokens, a negative level is the backlog waiting for tokens
+            for (Bucket b : taken) {
+                b.tokens--;
+            }
+            if (wait > 0) {
+                delayed++;
+            }
+        }
+        if (wait == 0) {
+            out.complete(null);
+        } else {
+            RetryPolicy.schedule((wait + 999999) / 1000000L, new Runnable() {
+                public void run() {
+                    out.complete(null);
+                }
+            });
+        }
+        return out;
+    }
+
+    /**
+     * The current token levels by key, a negative level means requests are waiting for tokens
+     *
+     * @return the levels
+     */
+    public synchronized Map<String, Double> getLevels() {
+        Map<String, Double> out = new LinkedHashMap<>();
+        long now = System.nanoTime();
+        for (Map.Entry<String, Bucket> e : buckets.entrySet()) {
+            e.getValue().refill(now);
+            out.put(e.getKey(), e.getValue().tokens);
+        }
+        return Collections.unmodifiableMap(out);
+    }
+
+    /**
+     * The number of requests that waited for a token
+     */
+    public synchronized long getDelayed() {
+        return delayed;
+    }
+
+    /**
+     * The number of requests rejected because they would have waited too long
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * The longest time in milliseconds a request waits for its tokens before it's rejected,
+     * defaults to 1000
+     *
+     * @param maxWait the maxWait to set
+     */
+    public synchronized void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public synchronized long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * The number of buckets above which idle buckets are dropped, defaults to 10000. Busy buckets
+     * and buckets with a rate of their own are kept even beyond it.
+     *
+     * @param maxBuckets the maxBuckets to set
+     */
+    public synchronized void setMaxBuckets(int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+    }
+
+    public synchronized int getMaxBuckets() {
+        return maxBuckets;
+    }
+
+    @Override
+    public String toString() {
+        return "levels=" + getLevels() + " delayed=" + getDelayed() + " rejected=" + getRejected();
+    }
+}
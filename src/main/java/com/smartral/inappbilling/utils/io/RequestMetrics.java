@@ -0,0 +1,187 @@
+package com.smartral.inappbilling.utils.io;
+
+/**
+ * The timings and sizes of a single attempt of a {@link ConnectionRequest}. Durations are in
+ * milliseconds and -1 for phases the attempt didn't reach.
+ *
+ * <p>Transports that block while the request is sent, like the default one, upload the body while
+ * the response is requested so the upload is part of the time to first byte.</p>
+ *
+ * @see ConnectionRequest#addMetricsListener(RequestMetrics.Listener)
+ * @see NetworkEvent#getMetrics()
+ */
+public class RequestMetrics {
+
+    /**
+     * Notified when an attempt of a request is done
+     */
+    public interface Listener {
+        void requestCompleted(RequestMetrics metrics);
+    }
+
+    private final String url;
+    private final int attempt;
+    private final long queuedAt;
+    private final long startedAt;
+    private long connectStartedAt;
+    private long connectedAt;
+    private long requestSentAt;
+    private long firstByteAt;
+    private long readAt;
+    private long completedAt;
+    private long dispatch;
+    private long dispatchBeforeRead;
+    private long bytesOut;
+    private long bytesIn;
+    private int responseCode;
+    private Exception failure;
+
+    RequestMetrics(String url, int attempt, long queuedAt, long startedAt) {
+        this.url = url;
+        this.attempt = attempt;
+        this.queuedAt = queuedAt;
+        this.startedAt = startedAt;
+    }
+
+    private static long millis(long from, long to) {
+        if (from == 0 || to == 0) {
+            return -1;
+        }
+        return Math.max(0, to - from) / 1000000L;
+    }
+
+    void connectStarted(long at) {
+        connectStartedAt = at;
+    }
+
+    void connected(long at) {
+        connectedAt = at;
+    }
+
+    void requestSent(long at) {
+        requestSentAt = at;
+    }
+
+    void firstByte(long at) {
+        firstByteAt = at;
+    }
+
+    void read(long at) {
+        readAt = at;
+        dispatchBeforeRead = dispatch;
+    }
+
+    synchronized void addDispatch(long nanos) {
+        dispatch += nanos;
+    }
+
+    synchronized void addBytesOut(long n) {
+        bytesOut += n;
+    }
+
+    synchronized void addBytesIn(long n) {
+        bytesIn += n;
+    }
+
+    void completed(long at, int responseCode, Exception failure) {
+        completedAt = at;
+        this.responseCode = responseCode;
+        this.failure = failure;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The attempt of the request, 0 for the first one and higher for retries and redirects
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * The time the request waited for a network thread
+     */
+    public long getQueueWait() {
+        return millis(queuedAt, startedAt);
+    }
+
+    /**
+     * The time spent opening the connection including the TLS handshake
+     */
+    public long getConnect() {
+        return millis(connectStartedAt, connectedAt);
+    }
+
+    /**
+     * The time spent writing the request body
+     */
+    public long getWrite() {
+        return millis(connectedAt, requestSentAt);
+    }
+
+    /**
+     * The time from the request being sent to the response arriving
+     */
+    public long getTimeToFirstByte() {
+        return millis(requestSentAt, firstByteAt);
+    }
+
+    /**
+     * The time spent reading and parsing the response body
+     */
+    public synchronized long getRead() {
+        long read = millis(firstByteAt, readAt);
+        return read < 0 ? -1 : Math.max(0, read - dispatchBeforeRead / 1000000L);
+    }
+
+    /**
+     * The time spent in the response listeners and {@link ConnectionRequest#postResponse()}
+     */
+    public synchronized long getDispatch() {
+        return dispatch / 1000000L;
+    }
+
+    /**
+     * The time from queuing the request to the end of the attempt
+     */
+    public long getTotal() {
+        return millis(queuedAt, completedAt);
+    }
+
+    public synchronized long getBytesOut() {
+        return bytesOut;
+    }
+
+    public synchronized long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * The response code or 0 if no response was received
+     */
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    /**
+     * The exception that failed the attempt or null
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public boolean isCompleted() {
+        return completedAt != 0;
+    }
+
+    @Override
+    public String toString() {
+        return url + " #" + attempt + " code=" + responseCode
+                + " queue=" + getQueueWait() + "ms connect=" + getConnect() + "ms write=" + getWrite()
+                + "ms ttfb=" + getTimeToFirstByte() + "ms read=" + getRead() + "ms dispatch=" + getDispatch()
+                + "ms total=" + getTotal() + "ms out=" + getBytesOut() + "B in=" + getBytesIn() + "B"
+                + (failure != null ? " failure=" + failure : "");
+    }
+}
@@ -0,0 +1,316 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * Decides whether a failed {@link ConnectionRequest} is retried and how long it waits first. The
+ * delay grows exponentially up to a cap and is fully jittered so clients failing together don't
+ * retry together. Every retry also needs a token from a {@link Budget} shared by all policies
+ * unless set otherwise, so during an outage retries can't multiply the load on the store.
+ *
+ * <p>Requests that aren't idempotent are only retried when the server can't have processed them:
+ * the connection failed or the server answered 429 or 503.</p>
+ *
+ * <p>A policy can be frozen, e.g. once a shared validator uses it, its setters then throw.</p>
+ *
+ * @see ConnectionRequest#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+
+    private static final Budget sharedBudget = new Budget(0.1, 10, 100);
+    private static ScheduledExecutorService scheduler;
+
+    private int maxRetries = 2;
+    private long baseDelay = 100;
+    private long maxDelay = 2000;
+    private Budget budget = sharedBudget;
+    private volatile boolean frozen;
+
+    /**
+     * A token bucket limiting retries to a share of the requests. Each request adds a fraction of a
+     * token, each retry takes a whole one and a small reserve refills over time so retries still
+     * happen when there is little traffic.
+     */
+    public static class Budget {
+        private final double ratio;
+        private final double reservePerSecond;
+        private final double maxTokens;
+        private double tokens;
+        private long refilledAt = System.nanoTime();
+        private long granted;
+        private long rejected;
+
+        /**
+         * @param ratio the tokens each request adds, i.e. the share of requests that may be retried
+         * @param reservePerSecond the tokens added every second regardless of the traffic
+         * @param maxTokens the maximum number of tokens, the largest burst of retries
+         */
+        public Budget(double ratio, double reservePerSecond, double maxTokens) {
+            this.ratio = ratio;
+            this.reservePerSecond = reservePerSecond;
+            this.maxTokens = maxTokens;
+            this.tokens = maxTokens;
+        }
+
+        /**
+         * Records a request that isn't a retry
+         */
+        public synchronized void requestSent() {
+            tokens = Math.min(maxTokens, tokens + ratio);
+        }
+
+        /**
+         * Takes a token for a retry
+         *
+         * @return true if the retry may be sent
+         */
+        public synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(maxTokens, tokens + (now - refilledAt) / 1e9 * reservePerSecond);
+            refilledAt = now;
+            if (tokens >= 1) {
+                tokens--;
+                granted++;
+                return true;
+            }
+            rejected++;
+            return false;
+        }
+
+        /**
+         * The number of retries that could be sent right now
+         */
+        public synchronized int getAvailable() {
+            return (int) tokens;
+        }
+
+        /**
+         * The number of retries the budget allowed
+         */
+        public synchronized long getGranted() {
+            return granted;
+        }
+
+        /**
+         * The number of retries the budget refused
+         */
+        public synchronized long getRejected() {
+            return rejected;
+        }
+    }
+
+    /**
+     * The budget shared by all the policies that don't have their own
+     *
+     * @return the shared budget
+     */
+    public static Budget getSharedBudget() {
+        return sharedBudget;
+    }
+
+    /**
+     * Checks whether a failure is transient and another attempt could succeed
+     *
+     * @param idempotent true if sending the request twice is harmless
+     * @param responseCode the response code or 0 if the request failed without a response
+     * @param error the exception that failed the request or null
+     * @return true if the failure can be retried
+     */
+    protected boolean isRetryable(boolean idempotent, int responseCode, Exception error) {
+        if (error != null) {
+            if (error instanceof EndpointGuard.RejectedException || error instanceof ConnectionRequest.DeadlineExceededException) {
+                // retrying a shed request would add load and a passed deadline stays passed
+                return false;
+            }
+            if (error instanceof ConnectException
+                    || (error instanceof SocketTimeoutException && "connect timed out".equals(error.getMessage()))) {
+                // the request never reached the server
+                return true;
+            }
+            if (error instanceof UnknownHostException || error instanceof SSLHandshakeException) {
+                return false;
+            }
+            return idempotent && error instanceof IOException;
+        }
+        switch (responseCode) {
+            case 429:
+            case 503:
+                return true;
+            case 500:
+            case 502:
+            case 504:
+                return idempotent;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether a failed request is retried, a retry takes a token from the budget
+     *
+     * @param retries the number of retries already made
+     * @param idempotent true if sending the request twice is harmless
+     * @param responseCode the response code or 0 if the request failed without a response
+     * @param error the exception that failed the request or null
+     * @return true if the request should be retried
+     */
+    public boolean shouldRetry(int retries, boolean idempotent, int responseCode, Exception error) {
+        return isRetryable(idempotent, responseCode, error) && acquire(retries);
+    }
+
+    /**
+     * Checks whether another retry is allowed for a failure the caller found to be transient, e.g.
+     * a store status telling the service is temporarily unavailable. A retry takes a token from
+     * the budget.
+     *
+     * @param retries the number of retries already made
+     * @return true if the request may be retried
+     */
+    public boolean acquire(int retries) {
+        return retries < maxRetries && budget.tryAcquire();
+    }
+
+    /**
+     * The delay before the next retry, a random duration up to the exponential backoff but never
+     * shorter than the delay the server asked for. A server asking for more than the max delay
+     * isn't retried, the failure is surfaced instead.
+     *
+     * @param retries the number of retries already made
+     * @param retryAfter the delay the server asked for in milliseconds or 0
+     * @return the delay in milliseconds or -1 if the request must not be retried
+     */
+    public long getDelay(int retries, long retryAfter) {
+        if (retryAfter > maxDelay) {
+            return -1;
+        }
+        long backoff = Math.min(maxDelay, baseDelay << Math.min(retries, 20));
+        long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        return Math.max(delay, retryAfter);
+    }
+
+    /**
+     * Runs the task after the delay on the retry thread
+     *
+     * @param delay the delay in milliseconds
+     * @param task the task
+     */
+    static void schedule(long delay, Runnable task) {
+        ScheduledExecutorService s;
+        synchronized (RetryPolicy.class) {
+            if (scheduler == null) {
+                scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Retry");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            s = scheduler;
+        }
+        s.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Makes the policy immutable, its setters throw from now on
+     *
+     * @return this policy
+     */
+    public RetryPolicy freeze() {
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * Indicates whether the setters throw
+     *
+     * @return true if the policy is frozen
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkConfigurable() {
+        if (frozen) {
+            throw new IllegalStateException("A frozen retry policy can't be reconfigured");
+        }
+    }
+
+    /**
+     * @return the maxRetries
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * The number of times a request is retried at most, defaults to 2
+     *
+     * @param maxRetries the maxRetries to set
+     */
+    public void setMaxRetries(int maxRetries) {
+        checkConfigurable();
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the baseDelay
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * The backoff of the first retry in milliseconds, it doubles with every retry. Defaults to 100.
+     *
+     * @param baseDelay the baseDelay to set
+     */
+    public void setBaseDelay(long baseDelay) {
+        checkConfigurable();
+        this.baseDelay = baseDelay;
+    }
+
+    /**
+     * @return the maxDelay
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * The longest delay before a retry in milliseconds, defaults to 2000. Responses whose
+     * Retry-After asks for longer aren't retried.
+     *
+     * @param maxDelay the maxDelay to set
+     */
+    public void setMaxDelay(long maxDelay) {
+        checkConfigurable();
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return the budget
+     */
+    public Budget getBudget() {
+        return budget;
+    }
+
+    /**
+     * The budget the retries of this policy draw from, the shared budget by default
+     *
+     * @param budget the budget to set
+     */
+    public void setBudget(Budget budget) {
+        checkConfigurable();
+        this.budget = budget != null ? budget : sharedBudget;
+    }
+}
@@ -0,0 +1,121 @@
+package com.smartral.inappbilling.utils.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries the HTTP exchanges of {@link ConnectionRequest}. The default transport is built on
+ * {@link java.net.HttpURLConnection} and reuses connections, the experimental {@link NioTransport}
+ * exchanges without holding a thread per request but opens a connection per exchange and
+ * {@link LoopbackTransport} answers from memory.
+ *
+ * @see ConnectionRequest#setDefaultTransport(Transport)
+ */
+public interface Transport {
+
+    /**
+     * Creates a connection to the given url, the request is sent by {@link Connection#send()}
+     *
+     * @param url the url
+     * @param doInput true if the response body is read
+     * @param doOutput true if a request body is written
+     * @param connectTimeout the connect timeout in milliseconds, 0 for none
+     * @return the connection
+     * @throws IOException if the url can't be opened
+     */
+    Connection open(String url, boolean doInput, boolean doOutput, int connectTimeout) throws IOException;
+
+    /**
+     * A single HTTP exchange. The request is set up first, then sent, then the response is read.
+     */
+    interface Connection {
+
+        void setRequestMethod(String method) throws IOException;
+
+        void addRequestHeader(String key, String value);
+
+        void setChunkedStreamingMode(int chunkLength);
+
+        /**
+         * The time in milliseconds the connection may stay silent while the response is read
+         * before the exchange fails with a {@link java.net.SocketTimeoutException}, 0 for no limit.
+         * Transports that don't wait on a network ignore it.
+         */
+        default void setReadTimeout(int readTimeout) {
+        }
+
+        /**
+         * Opens the connection once the headers are set and before the body is written, transports
+         * that connect when the request is sent ignore it
+         */
+        default void connect() throws IOException {
+        }
+
+        /**
+         * The stream the request body is written to
+         */
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Sends the request once the body was written. The future completes when the response
+         * can be read without blocking on the network, transports that block while reading the
+         * response return a completed future.
+         *
+         * @return the future of the response
+         */
+        CompletableFuture<Void> send();
+
+        int getResponseCode() throws IOException;
+
+        String getResponseMessage() throws IOException;
+
+        /**
+         * The response headers with the values of each header in the order they were received,
+         * the status line is mapped to the null key
+         */
+        Map<String, List<String>> getHeaderFields();
+
+        /**
+         * The content length of the response or -1 if unknown
+         */
+        int getContentLength();
+
+        /**
+         * The response body, for error response codes the error body
+         */
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * Releases the connection, aborting the exchange if it's still in progress
+         */
+        void close();
+
+        /**
+         * The {@link System#nanoTime()} at which the connection was established, 0 if the
+         * transport doesn't track it
+         */
+        default long getConnectedAt() {
+            return 0;
+        }
+
+        /**
+         * The {@link System#nanoTime()} at which the last byte of the request was written, 0 if
+         * the transport doesn't track it
+         */
+        default long getRequestSentAt() {
+            return 0;
+        }
+
+        /**
+         * The {@link System#nanoTime()} at which the first byte of the response arrived, 0 if the
+         * transport doesn't track it
+         */
+        default long getFirstByteAt() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.smartral.inappbilling.utils.util;
+
+import com.smartral.inappbilling.utils.io.ConnectionRequest;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces identical asynchronous calls that are in flight at the same time. The first caller
+ * for a key performs the call and every caller that arrives before it completes receives the
+ * same outcome through its own callback.
+ *
+ * @param <T> the type of the call result
+ */
+public class CallbackCoalescer<T> {
+
+    /**
+     * Performs the actual call, the supplied callback must be invoked exactly once
+     */
+    public interface Call<T> {
+        void perform(Callback<T> cb);
+    }
+
+    private final Map<String, List<Callback<T>>> inFlight = new HashMap<>();
+
+    /**
+     * Performs the call unless an identical call is already in flight in which case the callback
+     * is attached to that call.
+     *
+     * @param key identifies identical calls
+     * @param cb the callback receiving the outcome
+     * @param wait true if the caller expects the callback to be invoked before this method
+     *             returns, a caller joining a call in flight then blocks until it completes
+     * @param call performs the call when there is none in flight
+     */
+    public void execute(final String key, Callback<T> cb, boolean wait, Call<T> call) {
+        execute(key, cb, wait, 0, call);
+    }
+
+    /**
+     * Performs the call unless an identical call is already in flight in which case the callback
+     * is attached to that call. A blocking caller joining a call in flight waits until its own
+     * deadline at most, the call keeps running for the other callers.
+     *
+     * @param key identifies identical calls
+     * @param cb the callback receiving the outcome
+     * @param wait true if the caller expects the callback to be invoked before this method
+     *             returns, a caller joining a call in flight then blocks until it completes
+     * @param deadline the time in milliseconds since the epoch a blocking caller stops waiting
+     *                 for a call it joined by or 0 to wait until it completes
+     * @param call performs the call when there is none in flight
+     */
+    public void execute(final String key, Callback<T> cb, boolean wait, long deadline, Call<T> call) {
+        WaitingCallback<T> waiting = null;
+        boolean joined = false;
+        final List<Callback<T>> group;
+        synchronized (inFlight) {
+            List<Callback<T>> waiters = inFlight.get(key);
+            if (waiters != null) {
+                joined = true;
+                if (wait) {
+                    waiting = new WaitingCallback<T>(cb);
+                    waiters.add(waiting);
+                } else {
+                    waiters.add(cb);
+                }
+            } else {
+                waiters = new ArrayList<>();
+                waiters.add(cb);
+                inFlight.put(key, waiters);
+            }
+            group = waiters;
+        }
+        if (joined) {
+            if (waiting != null) {
+                waiting.await(deadline);
+            }
+            return;
+        }
+        Callback<T> dispatcher = new Callback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                List<Callback<T>> waiters = complete(key, group);
+                if (waiters == null) {
+                    return;
+                }
+                for (Callback<T> waiter : waiters) {
+                    try {
+                        waiter.onSuccess(value);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(CallbackCoalescer.class.getSimpleName()).log(Level.WARNING, "Callback failed", ex);
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+                List<Callback<T>> waiters = complete(key, group);
+                if (waiters == null) {
+                    return;
+                }
+                for (Callback<T> waiter : waiters) {
+                    try {
+                        waiter.onError(sender, err, errorCode, errorMessage);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(CallbackCoalescer.class.getSimpleName()).log(Level.WARNING, "Callback failed", ex);
+                    }
+                }
+            }
+        };
+        try {
+            call.perform(dispatcher);
+        } catch (RuntimeException ex) {
+            // the exception propagates to the first caller, fail the callers that joined it
+            List<Callback<T>> waiters = complete(key, group);
+            if (waiters != null) {
+                int len = waiters.size();
+                for (int i = 1; i < len; i++) {
+                    try {
+                        waiters.get(i).onError(this, ex, -1, ex.getMessage());
+                    } catch (RuntimeException err) {
+                        Logger.getLogger(CallbackCoalescer.class.getSimpleName()).log(Level.WARNING, "Callback failed", err);
+                    }
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Detaches the group of callers from the key so later callers start a new call
+     *
+     * @return the callers or null if the group was already completed
+     */
+    private List<Callback<T>> complete(String key, List<Callback<T>> group) {
+        synchronized (inFlight) {
+            if (inFlight.get(key) != group) {
+                return null;
+            }
+            inFlight.remove(key);
+            return new ArrayList<>(group);
+        }
+    }
+
+    /**
+     * @return the number of distinct calls in flight
+     */
+    public int size() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * Invokes the callback of a blocking caller that joined a call in flight and releases it
+     */
+    private static class WaitingCallback<T> implements Callback<T> {
+        private final Callback<T> cb;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicBoolean called = new AtomicBoolean();
+
+        WaitingCallback(Callback<T> cb) {
+            this.cb = cb;
+        }
+
+        void await(long deadline) {
+            try {
+                if (deadline <= 0) {
+                    done.await();
+                } else if (!done.await(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) {
+                    onError(this, new ConnectionRequest.DeadlineExceededException(), -1, "Deadline exceeded");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                onError(this, new InterruptedIOException("Interrupted while waiting for the call in flight"), -1, "Interrupted");
+            }
+        }
+
+        @Override
+        public void onSuccess(T value) {
+            if (called.compareAndSet(false, true)) {
+                try {
+                    cb.onSuccess(value);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        @Override
+        public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+            if (called.compareAndSet(false, true)) {
+                try {
+                    cb.onError(sender, err, errorCode, errorMessage);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package com.smartral.inappbilling.utils.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe LRU cache whose entries expire individually. The cache is bounded both by the
+ * number of entries and by their total weight (e.g. the size in bytes of the cached responses),
+ * the least recently used entries are evicted first.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class ExpiringCache<K, V> {
+
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int maxEntries;
+    private long maxWeight;
+    private long weight;
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+        final long weight;
+
+        Entry(V value, long expiresAt, long weight) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries
+     * @param maxWeight the maximum total weight of the entries
+     */
+    public ExpiringCache(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Returns the value for the key unless it is missing or expired
+     *
+     * @param key the key
+     * @return the value or null
+     */
+    public synchronized V get(K key) {
+        Entry<V> e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (e.expiresAt <= System.currentTimeMillis()) {
+            remove(key, e);
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * Adds or replaces the value for the key
+     *
+     * @param key the key
+     * @param value the value
+     * @param ttl the time to live of the entry in milliseconds, entries with a ttl of 0 or less
+     *            aren't cached
+     * @param entryWeight the weight of the entry, entries heavier than the maximum weight aren't
+     *            cached
+     */
+    public synchronized void put(K key, V value, long ttl, long entryWeight) {
+        Entry<V> old = entries.get(key);
+        if (old != null) {
+            remove(key, old);
+        }
+        if (ttl <= 0 || entryWeight > maxWeight) {
+            return;
+        }
+        entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl, entryWeight));
+        weight += entryWeight;
+        trim();
+    }
+
+    /**
+     * Removes the value for the key
+     *
+     * @param key the key
+     */
+    public synchronized void invalidate(K key) {
+        Entry<V> e = entries.get(key);
+        if (e != null) {
+            remove(key, e);
+        }
+    }
+
+    /**
+     * Removes all the values
+     */
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the number of entries including expired entries that weren't evicted yet
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of the entries
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        trim();
+    }
+
+    /**
+     * @param maxWeight the maximum total weight of the entries
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        trim();
+    }
+
+    private void remove(K key, Entry<V> e) {
+        entries.remove(key);
+        weight -= e.weight;
+    }
+
+    private void trim() {
+        if (entries.size() <= maxEntries && weight <= maxWeight) {
+            return;
+        }
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (it.hasNext() && (entries.size() > maxEntries || weight > maxWeight)) {
+            Entry<V> e = it.next().getValue();
+            it.remove();
+            weight -= e.weight;
+        }
+    }
+}
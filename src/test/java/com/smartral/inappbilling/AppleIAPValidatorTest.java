@@ -0,0 +1,313 @@
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.io.ConnectionRequest;
+import com.smartral.inappbilling.utils.io.LoopbackTransport;
+import com.smartral.inappbilling.utils.io.Transport;
+import com.smartral.inappbilling.utils.payment.Receipt;
+import com.smartral.inappbilling.utils.util.Callback;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppleIAPValidatorTest {
+
+    private static final String PRODUCTION = "https://buy.itunes.apple.com";
+    private static final String SANDBOX = "https://sandbox.itunes.apple.com";
+
+    private final LoopbackTransport loopback = new LoopbackTransport();
+    private final AtomicInteger production = new AtomicInteger();
+    private final AtomicInteger sandbox = new AtomicInteger();
+    private Transport previous;
+    private AppleIAPValidator validator;
+
+    @Before
+    public void setUp() {
+        previous = ConnectionRequest.getDefaultTransport();
+        ConnectionRequest.setDefaultTransport(loopback);
+        validator = new AppleIAPValidator(false, false);
+        // the endpoint guards are shared by host, keep them out of these tests
+        validator.setGuardEndpoints(false);
+    }
+
+    @After
+    public void tearDown() {
+        ConnectionRequest.setDefaultTransport(previous);
+    }
+
+    @Test
+    public void sandboxReceiptFallsBackToTheSandbox() throws Exception {
+        answer(PRODUCTION, production, "{\"status\":21007}");
+        answer(SANDBOX, sandbox, response(System.currentTimeMillis() + 60000));
+
+        Receipt[] receipts = validator.validate(receipt("sandbox"), true);
+
+        assertEquals(1, receipts.length);
+        assertEquals(1, production.get());
+        assertEquals(1, sandbox.get());
+
+        // the environment of the receipt is remembered
+        validator.validate(receipt("sandbox"), true);
+        assertEquals(1, production.get());
+        assertEquals(2, sandbox.get());
+    }
+
+    @Test
+    public void productionReceiptOfASandboxEnvironmentFallsBackToProduction() throws Exception {
+        answer(PRODUCTION, production, "{\"status\":21007}");
+        answer(SANDBOX, sandbox, response(System.currentTimeMillis() + 60000));
+        validator.validate(receipt("moved"), true);
+
+        answer(PRODUCTION, production, response(System.currentTimeMillis() + 60000));
+        answer(SANDBOX, sandbox, "{\"status\":21008}");
+        Receipt[] receipts = validator.validate(receipt("moved"), true);
+
+        assertEquals(1, receipts.length);
+        assertEquals(2, production.get());
+        assertEquals(2, sandbox.get());
+    }
+
+    @Test
+    public void unavailableServerIsRetried() throws Exception {
+        final String ok = response(System.currentTimeMillis() + 60000);
+        loopback.register(PRODUCTION, r -> production.incrementAndGet() == 1
+                ? new LoopbackTransport.Response(503, "{}") : new LoopbackTransport.Response(200, ok));
+
+        assertEquals(1, validator.validate(receipt("unavailable"), true).length);
+        assertEquals(2, production.get());
+    }
+
+    @Test
+    public void internalDataAccessErrorIsRetried() throws Exception {
+        final String ok = response(System.currentTimeMillis() + 60000);
+        loopback.register(PRODUCTION, r -> new LoopbackTransport.Response(200,
+                production.incrementAndGet() == 1 ? "{\"status\":21005}" : ok));
+
+        assertEquals(1, validator.validate(receipt("busy"), true).length);
+        assertEquals(2, production.get());
+    }
+
+    @Test
+    public void fallbackIsNotSentAfterTheDeadline() throws Exception {
+        loopback.register(PRODUCTION, r -> {
+            production.incrementAndGet();
+            sleep(300);
+            return new LoopbackTransport.Response(200, "{\"status\":21007}");
+        });
+        answer(SANDBOX, sandbox, response(System.currentTimeMillis() + 60000));
+
+        try {
+            validator.validate(receipt("late"), true, System.currentTimeMillis() + 200);
+            fail("The validation outlived its deadline");
+        } catch (IOException ex) {
+            assertTrue(String.valueOf(ex), ex instanceof ConnectionRequest.DeadlineExceededException);
+        }
+        assertEquals(0, sandbox.get());
+    }
+
+    @Test
+    public void cachedSubscriptionIsNotServedAfterItsExpiry() throws Exception {
+        final long expiry = System.currentTimeMillis() + 300;
+        answer(PRODUCTION, production, response(expiry));
+        validator.setResponseCacheMaxTtl(60000);
+
+        // the expiry doesn't depend on the first caller extracting the receipts
+        validator.validatePurchase(null, "cached", null, new Callback<AppleIAPValidator.Response>() {
+            @Override
+            public void onSuccess(AppleIAPValidator.Response value) {
+            }
+
+            @Override
+            public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+                fail(errorMessage);
+            }
+        }, true, 0);
+        validator.validate(receipt("cached"), true);
+        assertEquals(1, production.get());
+
+        Thread.sleep(expiry + 50 - System.currentTimeMillis());
+        validator.validate(receipt("cached"), true);
+        assertEquals(2, production.get());
+    }
+
+    @Test
+    public void hedgeAnswersWhenTheFirstRequestIsSlow() throws Exception {
+        long hedged = warmUpHedging(30);
+        final String ok = response(System.currentTimeMillis() + 60000);
+        final AtomicBoolean slowClosed = new AtomicBoolean();
+        loopback.register(PRODUCTION, r -> {
+            if (production.incrementAndGet() == 1) {
+                slowClosed.set(hang(r, 2000));
+            }
+            return new LoopbackTransport.Response(200, ok);
+        });
+        long start = System.currentTimeMillis();
+
+        assertEquals(1, validator.validate(receipt("hedged"), true).length);
+
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(hedged + 1, validator.getHedgedRequests());
+        // the slower request is killed
+        waitFor(slowClosed);
+    }
+
+    @Test
+    public void hedgeFailsOnceBothRequestsFailed() throws Exception {
+        long hedged = warmUpHedging(30);
+        loopback.register(PRODUCTION, r -> {
+            production.incrementAndGet();
+            sleep(300);
+            return new LoopbackTransport.Response(500, "{}");
+        });
+
+        try {
+            validator.validate(receipt("failed"), true);
+            fail("A failed validation succeeded");
+        } catch (IOException ex) {
+            // expected
+        }
+        assertEquals(hedged + 1, validator.getHedgedRequests());
+        assertEquals(2, production.get());
+    }
+
+    @Test
+    public void hedgesStopWhenTheBudgetIsSpent() throws Exception {
+        // enough fast samples for the slow requests not to move the median
+        long warmUp = warmUpHedging(60);
+        final String ok = response(System.currentTimeMillis() + 60000);
+        loopback.register(PRODUCTION, r -> {
+            sleep(30);
+            return new LoopbackTransport.Response(200, ok);
+        });
+
+        for (int i = 0; i < 30; i++) {
+            validator.validate(receipt("slow" + i), true);
+        }
+
+        long hedged = validator.getHedgedRequests();
+        assertTrue("hedged " + hedged + " requests", hedged >= 10 && hedged - warmUp < 30);
+    }
+
+    @Test
+    public void fallbackOfTheLosingRequestIsKilled() throws Exception {
+        long hedged = warmUpHedging(30);
+        answer(PRODUCTION, production, "{\"status\":21007}");
+        final String ok = response(System.currentTimeMillis() + 60000);
+        final AtomicBoolean slowClosed = new AtomicBoolean();
+        loopback.register(SANDBOX, r -> {
+            if (sandbox.incrementAndGet() == 1) {
+                slowClosed.set(hang(r, 2000));
+            }
+            return new LoopbackTransport.Response(200, ok);
+        });
+
+        assertEquals(1, validator.validate(receipt("sandbox"), true).length);
+
+        assertEquals(hedged + 1, validator.getHedgedRequests());
+        assertEquals(2, production.get());
+        waitFor(slowClosed);
+    }
+
+    @Test
+    public void percentileNeedsEnoughSamples() {
+        AppleIAPValidator.LatencySamples samples = new AppleIAPValidator.LatencySamples();
+        for (int i = 1; i < 20; i++) {
+            samples.add(i);
+        }
+        assertEquals(-1, samples.percentile(0.5));
+
+        samples.add(20);
+        assertEquals(11, samples.percentile(0.5));
+        assertEquals(20, samples.percentile(0.95));
+        assertEquals(20, samples.percentile(1));
+    }
+
+    @Test
+    public void percentileForgetsTheOldestSamples() {
+        AppleIAPValidator.LatencySamples samples = new AppleIAPValidator.LatencySamples();
+        for (int i = 0; i < 256; i++) {
+            samples.add(1000);
+        }
+        for (int i = 0; i < 256; i++) {
+            samples.add(10);
+        }
+        assertEquals(10, samples.percentile(0.99));
+    }
+
+    /**
+     * Turns hedging on and samples enough fast requests to hedge after the minimum delay, the
+     * median keeps a stray slow sample from moving the delay. Latencies are sampled once a
+     * request completed so a few more requests than the minimum samples are sent.
+     *
+     * @return the requests hedged while warming up
+     */
+    private long warmUpHedging(int requests) throws IOException {
+        validator.setRetryPolicy(null);
+        validator.setHedgeRequests(true);
+        validator.setHedgePercentile(0.5);
+        answer(PRODUCTION, new AtomicInteger(), response(System.currentTimeMillis() + 60000));
+        for (int i = 0; i < requests; i++) {
+            validator.validate(receipt("warm-up" + i), true);
+        }
+        return validator.getHedgedRequests();
+    }
+
+    /**
+     * Holds the request until the client hangs up or the timeout passes
+     *
+     * @return true if the client hung up
+     */
+    private static boolean hang(LoopbackTransport.Request r, long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (!r.isClosed() && System.currentTimeMillis() < end) {
+            sleep(5);
+        }
+        return r.isClosed();
+    }
+
+    private static void waitFor(AtomicBoolean condition) {
+        long end = System.currentTimeMillis() + 1000;
+        while (!condition.get() && System.currentTimeMillis() < end) {
+            sleep(5);
+        }
+        assertTrue(condition.get());
+    }
+
+    private void answer(String url, final AtomicInteger count, final String json) {
+        loopback.register(url, r -> {
+            count.incrementAndGet();
+            return new LoopbackTransport.Response(200, json);
+        });
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static Receipt receipt(String orderData) {
+        Receipt receipt = new Receipt();
+        receipt.setOrderData(orderData);
+        receipt.setStoreCode(Receipt.STORE_CODE_ITUNES);
+        return receipt;
+    }
+
+    /**
+     * A verifyReceipt response holding one subscription expiring at the given time
+     */
+    static String response(long expiry) {
+        return "{\"status\":0,\"receipt\":{\"bundle_id\":\"com.example.app\",\"in_app\":[{\"quantity\":\"1\","
+                + "\"product_id\":\"monthly\",\"transaction_id\":\"1\",\"original_transaction_id\":\"1\","
+                + "\"purchase_date_ms\":\"" + (expiry - 1000) + "\",\"expires_date_ms\":\"" + expiry + "\"}]}}";
+    }
+}
@@ -0,0 +1,119 @@
+package com.smartral.inappbilling;
+
+import com.smartral.inappbilling.utils.payment.Receipt;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppleJWSVerifierTest {
+
+    private static final String TRANSACTION = "{\"transactionId\":\"2000\",\"originalTransactionId\":\"1000\","
+            + "\"productId\":\"monthly\",\"bundleId\":\"com.example.app\",\"purchaseDate\":1700000000000}";
+
+    @Test
+    public void verifiesTransactionSignedByAppleShapedChain() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        String jws = sign(chain.leafKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate, chain.root);
+
+        Receipt receipt = new AppleJWSVerifier(chain.root).verifyTransaction(jws, null, "com.example.app");
+
+        assertEquals("2000", receipt.getTransactionId());
+        assertEquals("1000", receipt.getOriginalTransactionId());
+        assertEquals("monthly", receipt.getSku());
+    }
+
+    @Test
+    public void rejectsLeafWithoutSigningExtension() throws Exception {
+        TestCertificates.Chain chain = new TestCertificates.Chain(true, false, false);
+        assertRejected(chain, sign(chain.leafKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate, chain.root),
+                "Apple signing certificate");
+    }
+
+    @Test
+    public void rejectsLeafThatIsCA() throws Exception {
+        TestCertificates.Chain chain = new TestCertificates.Chain(true, true, true);
+        assertRejected(chain, sign(chain.leafKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate, chain.root),
+                "Apple signing certificate");
+    }
+
+    @Test
+    public void rejectsIntermediateWithoutWWDRExtension() throws Exception {
+        TestCertificates.Chain chain = new TestCertificates.Chain(false, true, false);
+        assertRejected(chain, sign(chain.leafKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate, chain.root),
+                "WWDR intermediate");
+    }
+
+    @Test
+    public void rejectsChainWithoutRoot() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        assertRejected(chain, sign(chain.leafKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate),
+                "instead of 3");
+    }
+
+    @Test
+    public void rejectsChainOfAnotherRoot() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        X509Certificate otherRoot = TestCertificates.apple().root;
+        try {
+            new AppleJWSVerifier(otherRoot).verify(sign(chain.leafKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate, chain.root));
+            fail("A token of another root was accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("Apple root"));
+        }
+    }
+
+    @Test
+    public void rejectsTokenSignedByAnotherKey() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        assertRejected(chain, sign(chain.intermediateKeys.getPrivate(), TRANSACTION, chain.leaf, chain.intermediate, chain.root),
+                "signature doesn't verify");
+    }
+
+    private static void assertRejected(TestCertificates.Chain chain, String jws, String reason) throws Exception {
+        try {
+            new AppleJWSVerifier(chain.root).verify(jws);
+            fail("The token was accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(reason));
+        }
+    }
+
+    /**
+     * Builds a compact ES256 JWS carrying the given certificates in its x5c header
+     */
+    private static String sign(PrivateKey key, String payload, X509Certificate... x5c) throws Exception {
+        StringBuilder header = new StringBuilder("{\"alg\":\"ES256\",\"x5c\":[");
+        for (int i = 0; i < x5c.length; i++) {
+            header.append(i == 0 ? "\"" : ",\"").append(Base64.getEncoder().encodeToString(x5c[i].getEncoded())).append('"');
+        }
+        header.append("]}");
+        Base64.Encoder url = Base64.getUrlEncoder().withoutPadding();
+        String input = url.encodeToString(header.toString().getBytes("UTF-8")) + '.' + url.encodeToString(payload.getBytes("UTF-8"));
+
+        Signature signature = Signature.getInstance("SHA256withECDSA");
+        signature.initSign(key);
+        signature.update(input.getBytes("US-ASCII"));
+        ASN1Sequence der = ASN1Sequence.getInstance(signature.sign());
+        byte[] raw = new byte[64];
+        copy(ASN1Integer.getInstance(der.getObjectAt(0)).getValue(), raw, 0);
+        copy(ASN1Integer.getInstance(der.getObjectAt(1)).getValue(), raw, 32);
+        return input + '.' + url.encodeToString(raw);
+    }
+
+    private static void copy(BigInteger value, byte[] out, int offset) {
+        byte[] bytes = value.toByteArray();
+        int len = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - len, out, offset + 32 - len, len);
+    }
+}
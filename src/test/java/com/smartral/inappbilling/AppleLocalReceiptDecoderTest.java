@@ -0,0 +1,132 @@
+package com.smartral.inappbilling;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERUTF8String;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.encoders.Base64;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AppleLocalReceiptDecoderTest {
+
+    @Test
+    public void decodesReceiptSignedByAppleShapedChain() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        Map<String, Object> res = new AppleLocalReceiptDecoder(chain.root).decode(receipt(chain), "com.example.app");
+
+        assertEquals(0, res.get("status"));
+        Map<?, ?> receipt = (Map<?, ?>) res.get("receipt");
+        assertEquals("com.example.app", receipt.get("bundle_id"));
+        List<?> inApp = (List<?>) receipt.get("in_app");
+        assertEquals(1, inApp.size());
+        assertEquals("monthly", ((Map<?, ?>) inApp.get(0)).get("product_id"));
+    }
+
+    @Test
+    public void rejectsLeafWithoutReceiptSigningExtension() throws Exception {
+        assertRejected(new TestCertificates.Chain(true, false, false), "Apple receipt signing certificate");
+    }
+
+    @Test
+    public void rejectsLeafThatIsCA() throws Exception {
+        assertRejected(new TestCertificates.Chain(true, true, true), "Apple receipt signing certificate");
+    }
+
+    @Test
+    public void rejectsIntermediateWithoutWWDRExtension() throws Exception {
+        assertRejected(new TestCertificates.Chain(false, true, false), "WWDR intermediate");
+    }
+
+    @Test
+    public void rejectsChainOfAnotherRoot() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        X509Certificate otherRoot = TestCertificates.apple().root;
+        try {
+            new AppleLocalReceiptDecoder(otherRoot).decode(receipt(chain), null);
+            fail("A receipt of another root was accepted");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectsReceiptOfAnotherBundle() throws Exception {
+        TestCertificates.Chain chain = TestCertificates.apple();
+        try {
+            new AppleLocalReceiptDecoder(chain.root).decode(receipt(chain), "com.example.other");
+            fail("A receipt of another bundle was accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("com.example.other"));
+        }
+    }
+
+    private static void assertRejected(TestCertificates.Chain chain, String reason) throws Exception {
+        try {
+            new AppleLocalReceiptDecoder(chain.root).decode(receipt(chain), null);
+            fail("The receipt was accepted");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains(reason));
+        }
+    }
+
+    /**
+     * Builds a base64 receipt with one in-app purchase signed by the leaf of the chain
+     */
+    private static String receipt(TestCertificates.Chain chain) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String now = format.format(new Date());
+
+        byte[] inApp = new DERSet(new ASN1Encodable[]{
+            attribute(1701, new ASN1Integer(1)),
+            attribute(1702, new DERUTF8String("monthly")),
+            attribute(1703, new DERUTF8String("1000")),
+            attribute(1704, new DERIA5String(now)),
+            attribute(1705, new DERUTF8String("1000"))
+        }).getEncoded();
+        byte[] payload = new DERSet(new ASN1Encodable[]{
+            attribute(2, new DERUTF8String("com.example.app")),
+            attribute(12, new DERIA5String(now)),
+            new DERSequence(new ASN1Encodable[]{new ASN1Integer(17), new ASN1Integer(1), new DEROctetString(inApp)})
+        }).getEncoded();
+
+        PrivateKey key = chain.leafKeys.getPrivate();
+        CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+        gen.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+                .build(new JcaContentSignerBuilder("SHA256withECDSA").build(key), chain.leaf));
+        gen.addCertificates(new JcaCertStore(Arrays.asList(chain.leaf, chain.intermediate, chain.root)));
+        return Base64.toBase64String(gen.generate(new CMSProcessableByteArray(payload), true).getEncoded());
+    }
+
+    private static ASN1Encodable attribute(int type, ASN1Encodable value) throws IOException {
+        ASN1EncodableVector v = new ASN1EncodableVector();
+        v.add(new ASN1Integer(type));
+        v.add(new ASN1Integer(1));
+        v.add(new DEROctetString(value.toASN1Primitive().getEncoded()));
+        return new DERSequence(v);
+    }
+}
@@ -0,0 +1,93 @@
+package com.smartral.inappbilling;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues certificate chains shaped like the Apple ones from a local CA
+ */
+final class TestCertificates {
+
+    private static final AtomicLong serial = new AtomicLong(1);
+
+    /**
+     * A root, an intermediate and a leaf issued by each other
+     */
+    static final class Chain {
+        final KeyPair rootKeys = keyPair();
+        final KeyPair intermediateKeys = keyPair();
+        final KeyPair leafKeys = keyPair();
+        final X509Certificate root;
+        final X509Certificate intermediate;
+        final X509Certificate leaf;
+
+        Chain(boolean intermediateOid, boolean leafOid, boolean leafIsCA) throws Exception {
+            root = certificate("CN=Test Root CA", rootKeys, null, null, true);
+            intermediate = certificate("CN=Test WWDR", intermediateKeys, root, rootKeys.getPrivate(), true,
+                    intermediateOid ? AppleLocalReceiptDecoder.WWDR_INTERMEDIATE_OID : null);
+            leaf = certificate("CN=Test Receipt Signing", leafKeys, intermediate, intermediateKeys.getPrivate(), leafIsCA,
+                    leafOid ? AppleLocalReceiptDecoder.RECEIPT_SIGNING_OID : null);
+        }
+    }
+
+    private TestCertificates() {
+    }
+
+    /**
+     * A chain carrying the Apple marker extensions
+     */
+    static Chain apple() throws Exception {
+        return new Chain(true, true, false);
+    }
+
+    static KeyPair keyPair() {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(256);
+            return kpg.generateKeyPair();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Issues a certificate valid from yesterday for a year
+     *
+     * @param issuer the issuer or null for a self signed certificate
+     * @param oid a marker extension to add or null
+     */
+    static X509Certificate certificate(String subject, KeyPair keys, X509Certificate issuer, PrivateKey issuerKey,
+                                       boolean ca, String oid) throws Exception {
+        long now = System.currentTimeMillis();
+        X500Name name = new X500Name(subject);
+        X500Name issuerName = issuer == null ? name : X500Name.getInstance(issuer.getSubjectX500Principal().getEncoded());
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuerName, BigInteger.valueOf(serial.getAndIncrement()),
+                new Date(now - 24 * 60 * 60 * 1000L), new Date(now + 365 * 24 * 60 * 60 * 1000L), name, keys.getPublic());
+        builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(ca));
+        if (oid != null) {
+            builder.addExtension(new ASN1ObjectIdentifier(oid), false, DERNull.INSTANCE);
+        }
+        PrivateKey signer = issuer == null ? keys.getPrivate() : issuerKey;
+        return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(signer)));
+    }
+
+    static X509Certificate certificate(String subject, KeyPair keys, X509Certificate issuer, PrivateKey issuerKey,
+                                       boolean ca) throws Exception {
+        return certificate(subject, keys, issuer, issuerKey, ca, null);
+    }
+}
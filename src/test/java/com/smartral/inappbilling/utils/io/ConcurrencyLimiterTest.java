@@ -0,0 +1,118 @@
+package com.smartral.inappbilling.utils.io;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void fastOutlierDoesNotCollapseTheLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 200);
+        // one call answered from a cache followed by a burst of normal calls
+        int n = acquireAll(limiter);
+        limiter.release(MS, false);
+        for (int i = 1; i < n; i++) {
+            limiter.release(20 * MS, false);
+        }
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() >= 20);
+    }
+
+    @Test
+    public void slowBurstShrinksTheLimitOncePerWindow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 200);
+        window(limiter, 20 * MS, false);
+        int before = limiter.getLimit();
+
+        window(limiter, 100 * MS, false);
+
+        int after = limiter.getLimit();
+        assertTrue(before + " to " + after, after < before && after >= (int) (before * 0.9));
+    }
+
+    @Test
+    public void droppedCallsShrinkTheLimitOncePerWindow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 200);
+        window(limiter, 20 * MS, true);
+        assertEquals(18, limiter.getLimit());
+    }
+
+    @Test
+    public void limitRecoversOnceTheEndpointIsHealthy() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 200);
+        window(limiter, 20 * MS, false);
+        while (limiter.getLimit() > 1) {
+            window(limiter, 20 * MS, true);
+        }
+
+        int windows = 0;
+        while (limiter.getLimit() < 20) {
+            window(limiter, 20 * MS, false);
+            windows++;
+        }
+        assertTrue("recovered after " + windows + " windows", windows <= 10);
+    }
+
+    @Test
+    public void unusedLimitDoesNotGrow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 200);
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(20 * MS, false);
+        }
+        assertEquals(20, limiter.getLimit());
+    }
+
+    @Test
+    public void callsBeyondTheLimitWaitForASlot() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2);
+        limiter.acquire();
+        limiter.acquire();
+        CompletableFuture<Void> queued = limiter.acquire();
+        assertEquals(1, limiter.getQueueDepth());
+
+        limiter.release();
+        queued.get(1, TimeUnit.SECONDS);
+        assertEquals(2, limiter.getInFlight());
+    }
+
+    @Test
+    public void callsAreShedOnceTheQueueIsFull() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+        limiter.setMaxQueue(1);
+        limiter.acquire();
+        limiter.acquire();
+        try {
+            limiter.acquire().getNow(null);
+            fail("A call beyond the queue was admitted");
+        } catch (Exception ex) {
+            assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof EndpointGuard.RejectedException);
+        }
+        assertEquals(1, limiter.getRejected());
+    }
+
+    /**
+     * Runs one window of calls, each call starts once the others fill the limit
+     */
+    private static void window(ConcurrencyLimiter limiter, long latencyNanos, boolean dropped) {
+        int n = Math.max(10, limiter.getLimit());
+        for (int i = 0; i < n; i++) {
+            acquireAll(limiter);
+            limiter.release(latencyNanos, dropped);
+        }
+    }
+
+    private static int acquireAll(ConcurrencyLimiter limiter) {
+        while (limiter.getInFlight() < limiter.getLimit()) {
+            limiter.acquire();
+        }
+        return limiter.getInFlight();
+    }
+}
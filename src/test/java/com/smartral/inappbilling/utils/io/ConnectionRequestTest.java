@@ -0,0 +1,179 @@
+package com.smartral.inappbilling.utils.io;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionRequestTest {
+
+    private final LoopbackTransport loopback = new LoopbackTransport();
+
+    @Test
+    public void repeatedHeaderKeepsItsReceivedOrderAndTheLastValueWins() {
+        loopback.register("http://headers/", r -> new LoopbackTransport.Response(200, "{}")
+                .addHeader("X-Value", "first").addHeader("X-Value", "second").addHeader("X-Value", "third"));
+        final String[][] values = new String[1][];
+        final String[] value = new String[1];
+        ConnectionRequest req = new ConnectionRequest("http://headers/x") {
+            @Override
+            protected void readHeaders(Object connection) throws IOException {
+                values[0] = getHeaders(connection, "X-Value");
+                value[0] = getHeader(connection, "X-Value");
+            }
+        };
+        send(req);
+
+        assertEquals(Arrays.asList("first", "second", "third"), Arrays.asList(values[0]));
+        assertEquals("third", value[0]);
+    }
+
+    @Test
+    public void unavailableServerIsRetried() {
+        final AtomicInteger calls = new AtomicInteger();
+        loopback.register("http://retry/", r -> new LoopbackTransport.Response(calls.incrementAndGet() < 3 ? 503 : 200, "{}"));
+        ConnectionRequest req = new ConnectionRequest("http://retry/x");
+        req.setPost(false);
+        req.setRetryPolicy(new RetryPolicy());
+        send(req);
+
+        assertEquals(3, calls.get());
+        assertEquals(200, req.getResponseCode());
+        assertEquals(2, req.getMetrics().getAttempt());
+    }
+
+    @Test
+    public void retriesStopAtTheLimit() {
+        final AtomicInteger calls = new AtomicInteger();
+        loopback.register("http://down/", r -> {
+            calls.incrementAndGet();
+            return new LoopbackTransport.Response(503, "{}");
+        });
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxRetries(1);
+        ConnectionRequest req = new ConnectionRequest("http://down/x");
+        req.setPost(false);
+        req.setRetryPolicy(policy);
+        send(req);
+
+        assertEquals(2, calls.get());
+        assertEquals(503, req.getResponseCode());
+    }
+
+    @Test
+    public void retryWaitsTheFullRetryAfter() {
+        final long[] sentAt = new long[2];
+        final AtomicInteger calls = new AtomicInteger();
+        loopback.register("http://later/", r -> {
+            int call = calls.getAndIncrement();
+            sentAt[call] = System.currentTimeMillis();
+            return call == 0 ? new LoopbackTransport.Response(503, "{}").addHeader("Retry-After", "1")
+                    : new LoopbackTransport.Response(200, "{}");
+        });
+        RetryPolicy policy = new RetryPolicy();
+        policy.setMaxDelay(3000);
+        ConnectionRequest req = new ConnectionRequest("http://later/x");
+        req.setPost(false);
+        req.setRetryPolicy(policy);
+        send(req);
+
+        assertEquals(200, req.getResponseCode());
+        assertTrue("Retried after " + (sentAt[1] - sentAt[0]) + "ms", sentAt[1] - sentAt[0] >= 1000);
+    }
+
+    @Test
+    public void retryAfterBeyondTheMaxDelayIsSurfaced() {
+        final AtomicInteger calls = new AtomicInteger();
+        loopback.register("http://throttled/", r -> {
+            calls.incrementAndGet();
+            return new LoopbackTransport.Response(429, "{}").addHeader("Retry-After", "30");
+        });
+        ConnectionRequest req = new ConnectionRequest("http://throttled/x");
+        req.setPost(false);
+        req.setRetryPolicy(new RetryPolicy());
+        send(req);
+
+        assertEquals(1, calls.get());
+        assertEquals(429, req.getResponseCode());
+    }
+
+    @Test
+    public void retryAfterDateBeyondTheMaxDelayIsSurfaced() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        final String date = format.format(new Date(System.currentTimeMillis() + 30000));
+        final AtomicInteger calls = new AtomicInteger();
+        loopback.register("http://maintenance/", r -> {
+            calls.incrementAndGet();
+            return new LoopbackTransport.Response(503, "{}").addHeader("Retry-After", date);
+        });
+        ConnectionRequest req = new ConnectionRequest("http://maintenance/x");
+        req.setPost(false);
+        req.setRetryPolicy(new RetryPolicy());
+        send(req);
+
+        assertEquals(1, calls.get());
+        assertEquals(503, req.getResponseCode());
+    }
+
+    @Test
+    public void retryAfterBeyondTheDeadlineIsSurfaced() {
+        final AtomicInteger calls = new AtomicInteger();
+        loopback.register("http://busy/", r -> {
+            calls.incrementAndGet();
+            return new LoopbackTransport.Response(503, "{}").addHeader("Retry-After", "1");
+        });
+        ConnectionRequest req = new ConnectionRequest("http://busy/x");
+        req.setPost(false);
+        req.setRetryPolicy(new RetryPolicy());
+        req.setDeadline(System.currentTimeMillis() + 500);
+        long start = System.currentTimeMillis();
+        send(req);
+
+        assertEquals(1, calls.get());
+        assertEquals(503, req.getResponseCode());
+        assertTrue(System.currentTimeMillis() - start < 500);
+    }
+
+    @Test
+    public void unreadErrorBodyIsDrained() {
+        loopback.register("http://drain/", r -> new LoopbackTransport.Response(500, "Error", new byte[1000]));
+        ConnectionRequest req = new ConnectionRequest("http://drain/x");
+        req.setPost(false);
+        send(req);
+
+        assertEquals(500, req.getResponseCode());
+        assertEquals(1000, req.getMetrics().getBytesIn());
+    }
+
+    @Test
+    public void drainStopsAtTheLimit() {
+        int limit = ConnectionRequest.getResponseDrainLimit();
+        ConnectionRequest.setResponseDrainLimit(100);
+        try {
+            loopback.register("http://large/", r -> new LoopbackTransport.Response(500, "Error", new byte[1000]));
+            ConnectionRequest req = new ConnectionRequest("http://large/x");
+            req.setPost(false);
+            send(req);
+
+            assertEquals(100, req.getMetrics().getBytesIn());
+        } finally {
+            ConnectionRequest.setResponseDrainLimit(limit);
+        }
+    }
+
+    private ConnectionRequest send(ConnectionRequest req) {
+        req.setTransport(loopback);
+        req.setFailSilently(true);
+        req.addToQueueAndWait();
+        return req;
+    }
+}
@@ -0,0 +1,132 @@
+package com.smartral.inappbilling.utils.io;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimiterTest {
+
+    @Test
+    public void burstIsServedImmediately() {
+        RateLimiter limiter = new RateLimiter(1, 3);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.acquire("account").isDone());
+        }
+        assertFalse(limiter.acquire("account").isDone());
+        assertEquals(1, limiter.getDelayed());
+    }
+
+    @Test
+    public void requestsBeyondTheBurstArePaced() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1);
+        final List<Long> done = new ArrayList<>();
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(limiter.acquire("account").thenRun(() -> {
+                synchronized (done) {
+                    done.add(System.nanoTime());
+                }
+            }));
+        }
+        for (CompletableFuture<Void> f : futures) {
+            f.get(2, TimeUnit.SECONDS);
+        }
+
+        // one token every 50ms after the first
+        long last = TimeUnit.NANOSECONDS.toMillis(done.get(done.size() - 1) - start);
+        assertTrue("last request after " + last + "ms", last >= 190 && last < 1000);
+        assertEquals(4, limiter.getDelayed());
+        assertEquals(0, limiter.getRejected());
+    }
+
+    @Test
+    public void requestWaitsForItsSlowestBucket() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000, 1);
+        limiter.setRate("package", 10, 1);
+        limiter.acquire("account", "package");
+        long start = System.nanoTime();
+
+        limiter.acquire("account", "package").get(2, TimeUnit.SECONDS);
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("waited " + waited + "ms", waited >= 90);
+    }
+
+    @Test
+    public void requestIsRejectedWhenTheWaitExceedsTheMaxWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        limiter.setMaxWait(500);
+        limiter.acquire("account");
+
+        try {
+            limiter.acquire("account").getNow(null);
+            fail("A request waiting a second was admitted");
+        } catch (Exception ex) {
+            assertTrue(String.valueOf(ex.getCause()), ex.getCause() instanceof EndpointGuard.RejectedException);
+        }
+        assertEquals(1, limiter.getRejected());
+        // a rejected request doesn't reserve a token
+        assertTrue(limiter.getLevels().get("account") >= 0);
+    }
+
+    @Test
+    public void backlogCountsTowardsTheMaxWait() {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        limiter.setMaxWait(250);
+        // the burst and two reserved tokens fit within 250ms, the fourth would wait 300ms
+        assertTrue(limiter.acquire("account").isDone());
+        limiter.acquire("account");
+        limiter.acquire("account");
+        assertTrue(limiter.acquire("account").isCompletedExceptionally());
+        assertEquals(2, limiter.getDelayed());
+    }
+
+    @Test
+    public void idleBucketsAreDroppedAtTheMaxBuckets() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000, 1);
+        limiter.setMaxBuckets(2);
+        limiter.acquire("a");
+        limiter.acquire("b");
+        Thread.sleep(20);
+
+        limiter.acquire("c");
+
+        assertEquals(2, limiter.getLevels().size());
+        assertFalse(limiter.getLevels().containsKey("a"));
+    }
+
+    @Test
+    public void busyBucketsAreKeptBeyondTheMaxBuckets() {
+        RateLimiter limiter = new RateLimiter(0.01, 1);
+        limiter.setMaxBuckets(2);
+        limiter.acquire("a");
+        limiter.acquire("b");
+
+        limiter.acquire("c");
+
+        assertEquals(3, limiter.getLevels().size());
+    }
+
+    @Test
+    public void bucketsWithARateOfTheirOwnAreKept() throws Exception {
+        RateLimiter limiter = new RateLimiter(1000, 1);
+        limiter.setMaxBuckets(2);
+        limiter.setRate("a", 1000, 1);
+        limiter.acquire("b");
+        Thread.sleep(20);
+
+        limiter.acquire("c");
+
+        assertTrue(limiter.getLevels().containsKey("a"));
+        assertFalse(limiter.getLevels().containsKey("b"));
+    }
+}
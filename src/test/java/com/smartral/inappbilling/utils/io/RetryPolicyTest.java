@@ -0,0 +1,66 @@
+package com.smartral.inappbilling.utils.io;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void delayStaysWithinTheBackoff() {
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < 100; i++) {
+            long delay = policy.getDelay(1, 0);
+            assertTrue(String.valueOf(delay), delay >= 0 && delay <= 200);
+            delay = policy.getDelay(30, 0);
+            assertTrue(String.valueOf(delay), delay >= 0 && delay <= policy.getMaxDelay());
+        }
+    }
+
+    @Test
+    public void delayIsNeverShorterThanTheRetryAfter() {
+        RetryPolicy policy = new RetryPolicy();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(policy.getDelay(0, 1500) >= 1500);
+        }
+        assertEquals(2000, policy.getDelay(0, 2000));
+    }
+
+    @Test
+    public void retryAfterBeyondTheMaxDelayIsNotRetried() {
+        RetryPolicy policy = new RetryPolicy();
+        assertEquals(-1, policy.getDelay(0, 2001));
+        policy.setMaxDelay(5000);
+        assertTrue(policy.getDelay(0, 2001) >= 2001);
+    }
+
+    @Test
+    public void budgetRejectsOnceItsTokensAreSpent() {
+        RetryPolicy.Budget budget = new RetryPolicy.Budget(0.1, 0, 2);
+        assertTrue(budget.tryAcquire());
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+        assertEquals(2, budget.getGranted());
+        assertEquals(1, budget.getRejected());
+    }
+
+    @Test
+    public void budgetEarnsTokensFromTheRequestsSent() {
+        RetryPolicy.Budget budget = new RetryPolicy.Budget(0.5, 0, 2);
+        budget.tryAcquire();
+        budget.tryAcquire();
+        for (int i = 0; i < 2; i++) {
+            budget.requestSent();
+        }
+        assertTrue(budget.tryAcquire());
+        assertFalse(budget.tryAcquire());
+
+        // the tokens never exceed the maximum
+        for (int i = 0; i < 100; i++) {
+            budget.requestSent();
+        }
+        assertEquals(2, budget.getAvailable());
+    }
+}
@@ -0,0 +1,150 @@
+package com.smartral.inappbilling.utils.util;
+
+import com.smartral.inappbilling.utils.io.ConnectionRequest;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CallbackCoalescerTest {
+
+    private final CallbackCoalescer<String> coalescer = new CallbackCoalescer<>();
+
+    @Test
+    public void callersJoiningACallInFlightShareItsResult() {
+        AtomicInteger calls = new AtomicInteger();
+        List<Callback<String>> pending = new ArrayList<>();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+
+        coalescer.execute("key", first, false, cb -> {
+            calls.incrementAndGet();
+            pending.add(cb);
+        });
+        coalescer.execute("key", second, false, cb -> calls.incrementAndGet());
+        assertEquals(1, coalescer.size());
+
+        pending.get(0).onSuccess("done");
+        assertEquals(1, calls.get());
+        assertEquals("done", first.value);
+        assertEquals("done", second.value);
+        assertEquals(0, coalescer.size());
+    }
+
+    @Test
+    public void failureReachesEveryCaller() {
+        List<Callback<String>> pending = new ArrayList<>();
+        Recorder first = new Recorder();
+        Recorder second = new Recorder();
+        IOException err = new IOException("failed");
+
+        coalescer.execute("key", first, false, pending::add);
+        coalescer.execute("key", second, false, cb -> fail("The call was performed twice"));
+        pending.get(0).onError(this, err, 500, "failed");
+
+        assertSame(err, first.err);
+        assertSame(err, second.err);
+        assertEquals(0, coalescer.size());
+    }
+
+    @Test
+    public void blockingCallerStopsWaitingAtItsDeadline() {
+        coalescer.execute("key", new Recorder(), false, cb -> {
+        });
+        Recorder waiting = new Recorder();
+        long start = System.currentTimeMillis();
+
+        coalescer.execute("key", waiting, true, start + 200, cb -> fail("The call was performed twice"));
+
+        long waited = System.currentTimeMillis() - start;
+        assertTrue("Waited " + waited + "ms", waited >= 190 && waited < 2000);
+        assertTrue(String.valueOf(waiting.err), waiting.err instanceof ConnectionRequest.DeadlineExceededException);
+        // the call keeps running for the caller that started it
+        assertEquals(1, coalescer.size());
+    }
+
+    @Test
+    public void blockingCallerIsReleasedWhenTheCallCompletes() throws Exception {
+        List<Callback<String>> pending = new ArrayList<>();
+        coalescer.execute("key", new Recorder(), false, pending::add);
+        Recorder waiting = new Recorder();
+        CountDownLatch joined = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            joined.countDown();
+            coalescer.execute("key", waiting, true, 0, cb -> fail("The call was performed twice"));
+        });
+        t.start();
+        joined.await();
+        Thread.sleep(50);
+
+        pending.get(0).onSuccess("done");
+        t.join(TimeUnit.SECONDS.toMillis(2));
+        assertEquals("done", waiting.value);
+    }
+
+    @Test
+    public void throwingCallbackDoesNotStopTheOthers() {
+        List<Callback<String>> pending = new ArrayList<>();
+        Recorder last = new Recorder();
+        coalescer.execute("key", new Throwing(), false, pending::add);
+        coalescer.execute("key", new Throwing(), false, null);
+        coalescer.execute("key", last, false, null);
+
+        pending.get(0).onSuccess("done");
+        assertEquals("done", last.value);
+    }
+
+    @Test
+    public void throwingCallFailsTheJoinedCallers() {
+        Recorder last = new Recorder();
+        IllegalStateException err = new IllegalStateException("failed");
+        try {
+            coalescer.execute("key", new Recorder(), false, cb -> {
+                coalescer.execute("key", new Throwing(), false, null);
+                coalescer.execute("key", last, false, null);
+                throw err;
+            });
+            fail("The exception of the call was swallowed");
+        } catch (IllegalStateException ex) {
+            assertSame(err, ex);
+        }
+        assertSame(err, last.err);
+        assertEquals(0, coalescer.size());
+    }
+
+    private static class Recorder implements Callback<String> {
+        String value;
+        Throwable err;
+
+        @Override
+        public void onSuccess(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+            this.err = err;
+        }
+    }
+
+    private static class Throwing implements Callback<String> {
+        @Override
+        public void onSuccess(String value) {
+            throw new IllegalStateException("onSuccess");
+        }
+
+        @Override
+        public void onError(Object sender, Throwable err, int errorCode, String errorMessage) {
+            throw new IllegalStateException("onError");
+        }
+    }
+}